@@ -0,0 +1,100 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A binary file format for sheets, read by MappedSheet without parsing (see SheetFiles for the text formats).
+ *
+ * All numbers are big-endian:
+ * - a header of HEADER_SIZE bytes: MAGIC, the format VERSION and flags (shorts), then the width, height,
+ *   number of cells and number of strings (ints);
+ * - a record of RECORD_SIZE bytes per non-empty cell, sorted by DependencyGraph.key(col,row) so a cell is
+ *   found by binary search: its key (long), the string of its data, the string of its value, its order and
+ *   its type (ints). With the VALUES flag off, the value, order and type are not stored (-1, 0 and 0);
+ * - the string table: an offset per string plus one for the end (ints), then the strings in UTF-8.
+ *   Equal strings are stored once, so a formula repeated all over a sheet costs one entry.
+ */
+final class BinarySheetFile {
+    static final int MAGIC = 0x45583242; // "EX2B"
+    static final short VERSION = 1;
+    static final short VALUES = 1; // flag: the records hold the evaluated values, orders and types
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 24;
+
+    private BinarySheetFile() {
+    }
+
+    /** @return true if the file starts as a binary sheet file. */
+    static boolean isBinary(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the given cells of the sheet with their evaluated values, atomically (see SheetFiles).
+     * @param cells the packed keys (see DependencyGraph.key) of all the non-empty cells, in any order.
+     */
+    static void save(Sheet sheet, long[] cells, String fileName) throws IOException {
+        long[] sorted = cells.clone();
+        Arrays.sort(sorted);
+        Map<String, Integer> index = new HashMap<>();
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        ByteArrayOutputStream offsetBytes = new ByteArrayOutputStream();
+        DataOutputStream offsets = new DataOutputStream(offsetBytes);
+        int[][] records = new int[sorted.length][];
+        for (int i = 0; i < sorted.length; i++) {
+            int col = DependencyGraph.col(sorted[i]), row = DependencyGraph.row(sorted[i]);
+            Cell cell = sheet.get(col, row);
+            int data = intern(cell.getData(), index, strings, offsets);
+            int value = intern(sheet.value(col, row), index, strings, offsets);
+            records[i] = new int[]{data, value, cell.getOrder(), cell.getType()};
+        }
+        offsets.writeInt(strings.size());
+
+        SheetFiles.writeAtomically(fileName, stream -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(VALUES);
+            out.writeInt(sheet.width());
+            out.writeInt(sheet.height());
+            out.writeInt(sorted.length);
+            out.writeInt(index.size());
+            for (int i = 0; i < sorted.length; i++) {
+                out.writeLong(sorted[i]);
+                for (int field : records[i]) {
+                    out.writeInt(field);
+                }
+            }
+            offsetBytes.writeTo(out);
+            strings.writeTo(out);
+            out.flush();
+        });
+    }
+
+    // The index of the string in the table, adding it at the end if it is not there yet.
+    private static int intern(String s, Map<String, Integer> index, ByteArrayOutputStream strings,
+                              DataOutputStream offsets) throws IOException {
+        Integer known = index.get(s);
+        if (known != null) return known;
+        offsets.writeInt(strings.size());
+        strings.write(s.getBytes(StandardCharsets.UTF_8));
+        index.put(s, index.size());
+        return index.size() - 1;
+    }
+
+    /** Loads the file into the target, for the sheets that keep their own copy of the cells. */
+    static void load(String fileName, SheetFiles.Target target) throws IOException {
+        MappedSheet file = MappedSheet.open(fileName);
+        target.reset(file.width(), file.height());
+        for (int i = 0; i < file.size(); i++) {
+            long key = file.key(i);
+            target.put(DependencyGraph.col(key), DependencyGraph.row(key), file.data(i));
+        }
+    }
+}
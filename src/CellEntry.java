@@ -10,9 +10,7 @@ public class CellEntry implements Index2D {
     
     @Override
     public String toString() {
-        char ch =' ';
-        ch = (char) (ch + x);
-        return ch + "" + (y);
+        return CellReference.name(x, y);
     }
     
     @Override
@@ -0,0 +1,64 @@
+/**
+ * Cell names: a column in bijective base 26 (A..Z, AA..ZZ, AAA..ZZZ) followed by a row number, e.g. "AB12".
+ * Parsing is a hand-written scan straight to packed coordinates (see DependencyGraph.key), without
+ * regular expressions or intermediate Strings, since it runs on every reference resolution.
+ */
+final class CellReference {
+    /** Returned by parse() for a text which is not a cell name. */
+    static final long INVALID = -1L;
+    /** At most 3 letters: columns A..ZZZ (0..18277). */
+    static final int MAX_LETTERS = 3;
+    /** At most 9 digits, so a row always fits in an int. */
+    static final int MAX_DIGITS = 9;
+
+    private CellReference() {
+    }
+
+    /** The value of a column letter (A or a = 1 .. Z or z = 26), or 0 if c is not a letter. */
+    static int letter(char c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 1;
+        if (c >= 'a' && c <= 'z') return c - 'a' + 1;
+        return 0;
+    }
+
+    /**
+     * Parses a cell name, ignoring surrounding whitespace and the letters' case.
+     * @return the packed col,row of the cell, or INVALID. The bounds of a sheet are not checked.
+     */
+    static long parse(CharSequence text) {
+        if (text == null) return INVALID;
+        int start = 0, end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+
+        int pos = start, col = 0;
+        while (pos < end && letter(text.charAt(pos)) > 0) {
+            if (pos - start == MAX_LETTERS) return INVALID;
+            col = col * 26 + letter(text.charAt(pos++));
+        }
+        if (pos == start) return INVALID;
+
+        int digits = pos, row = 0;
+        while (pos < end && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+            if (pos - digits == MAX_DIGITS) return INVALID;
+            row = row * 10 + (text.charAt(pos++) - '0');
+        }
+        if (pos == digits || pos != end) return INVALID;
+        return DependencyGraph.key(col - 1, row);
+    }
+
+    /** The letters of a column: 0 is "A", 25 is "Z", 26 is "AA". */
+    static String columnName(int col) {
+        char[] letters = new char[MAX_LETTERS + 4];
+        int pos = letters.length;
+        for (int n = col + 1; n > 0; n = (n - 1) / 26) {
+            letters[--pos] = (char) ('A' + (n - 1) % 26);
+        }
+        return new String(letters, pos, letters.length - pos);
+    }
+
+    /** The name of the cell at col,row (e.g. "B12"). */
+    static String name(int col, int row) {
+        return columnName(col) + row;
+    }
+}
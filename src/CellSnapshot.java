@@ -0,0 +1,56 @@
+/**
+ * A copy of a cell as it was after an evaluation: its data, the value presented for it, its type and
+ * its order. It is handed to readers on other threads as is (see SheetSnapshot and ConcurrentSheet),
+ * so it cannot be changed.
+ */
+public final class CellSnapshot implements Cell {
+    private final String data, value;
+    private final int type, order;
+
+    public CellSnapshot(String data, String value, int type, int order) {
+        this.data = data;
+        this.value = value;
+        this.type = type;
+        this.order = order;
+    }
+
+    /** The value presented for the cell when the copy was taken. */
+    public String value() {
+        return value;
+    }
+
+    @Override
+    public String getData() {
+        return data;
+    }
+
+    @Override
+    public void setData(String s) {
+        throw new UnsupportedOperationException("A cell snapshot is immutable, use Sheet.set()");
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public void setType(int t) {
+        throw new UnsupportedOperationException("A cell snapshot is immutable, use Sheet.set()");
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+
+    @Override
+    public void setOrder(int t) {
+        throw new UnsupportedOperationException("A cell snapshot is immutable, use Sheet.set()");
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A Sheet for large, mostly numeric spreadsheets.
+ * Instead of one SCell object per cell, every column is kept as two primitive arrays: the numeric
+ * values (double[]) and the cell types (byte[]). Only text cells, formulas and numbers whose text is
+ * not the canonical form of their value are kept in side tables, so a million numbers cost about
+ * 9MB and are scanned column by column. Cell objects are created only as views, on get().
+ *
+ * Evaluation is a full recalculation of the formulas (in depth order) whenever the sheet was
+ * changed since the last eval().
+ */
+public class ColumnarSheet implements Sheet, Formula.Values {
+    private static final byte EMPTY = 0; // the type of a cell with no data (Ex2Utils types are never 0)
+
+    private int width, height;
+    private double[][] values; // values[col] is allocated on the first write to that column
+    private byte[][] types;
+    private LongHashMap<String> texts; // the data of TEXT cells, and of NUMBER cells with a non canonical text
+    private LongHashMap<FormulaCell> formulas;
+    private RangeIndex ranges; // the numbers of the columns that aggregate functions read
+    private final DependencyGraph graph = new DependencyGraph(); // finds the formulas inside ranges for the depth search
+    private final Formula.Subtrees subtrees = new Formula.Subtrees(); // identical subexpressions are kept once
+    private boolean stale;
+
+    // A formula cell: its text, its parsed form (null if illegal) and the depth found by the last evaluation.
+    private static final class FormulaCell {
+        final String data;
+        final Formula formula;
+        int order;
+        byte state;
+
+        FormulaCell(String data, Formula.Subtrees shared) {
+            this.data = data;
+            this.formula = Formula.parse(data, shared);
+        }
+    }
+
+    public ColumnarSheet(int x, int y) {
+        initializeSheet(x, y);
+    }
+
+    public ColumnarSheet() {
+        this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+    }
+
+    private void initializeSheet(int cols, int rows) {
+        width = cols;
+        height = rows;
+        values = new double[cols][];
+        types = new byte[cols][];
+        texts = new LongHashMap<>();
+        formulas = new LongHashMap<>();
+        ranges = new RangeIndex(cols, rows, new RangeIndex.Source() {
+            public double number(int col, int row) {
+                return storedNumber(col, row);
+            }
+
+            public boolean isError(int col, int row) {
+                return storedError(col, row);
+            }
+        });
+        graph.clear();
+        stale = true;
+    }
+
+    private void ensureColumn(int col) {
+        if (values[col] == null) {
+            values[col] = new double[height];
+            types[col] = new byte[height];
+        }
+    }
+
+    private byte type(int col, int row) {
+        return types[col] == null ? EMPTY : types[col][row];
+    }
+
+    // The number held at col,row without evaluating anything (formulas keep their last result).
+    private double storedNumber(int col, int row) {
+        byte type = type(col, row);
+        return (type == Ex2Utils.NUMBER || type == Ex2Utils.FORM) ? values[col][row] : Double.NaN;
+    }
+
+    // Whether col,row held an error when it was last evaluated.
+    private boolean storedError(int col, int row) {
+        byte type = type(col, row);
+        return type == Ex2Utils.ERR_FORM_FORMAT || type == Ex2Utils.ERR_CYCLE_FORM;
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public void set(int x, int y, String c) {
+        if (!isIn(x, y)) return;
+        String data = (c == null || c.trim().isEmpty()) ? Ex2Utils.EMPTY_CELL : c;
+        long key = DependencyGraph.key(x, y);
+        texts.remove(key);
+        if (formulas.remove(key) != null) {
+            graph.setReferences(x, y, null);
+            graph.setRanges(x, y, null);
+        }
+        ranges.update(x, y, Double.NaN, false);
+        stale = true;
+
+        if (data.isEmpty()) {
+            if (types[x] != null) types[x][y] = EMPTY;
+            return;
+        }
+        ensureColumn(x);
+        if (data.startsWith("=")) {
+            FormulaCell cell = new FormulaCell(data, subtrees);
+            formulas.put(key, cell);
+            types[x][y] = Ex2Utils.FORM;
+            if (cell.formula != null) {
+                List<Formula.Aggregate> aggregates = cell.formula.aggregates();
+                graph.setReferences(x, y, cell.formula.references());
+                graph.setRanges(x, y, aggregates);
+                for (Formula.Aggregate aggregate : aggregates) {
+                    ranges.cover(aggregate.fromCol, aggregate.toCol, aggregate.toRow);
+                }
+            }
+            return;
+        }
+        try {
+            double number = Double.parseDouble(data);
+            values[x][y] = number;
+            types[x][y] = Ex2Utils.NUMBER;
+            ranges.update(x, y, number, false);
+            if (!data.equals(canonical(number))) {
+                texts.put(key, data);
+            }
+        } catch (NumberFormatException e) {
+            types[x][y] = Ex2Utils.TEXT;
+            texts.put(key, data);
+        }
+    }
+
+    // The text a number cell is given back as when its original text was not kept.
+    private static String canonical(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        return Double.toString(number);
+    }
+
+    private String data(int col, int row) {
+        long key = DependencyGraph.key(col, row);
+        FormulaCell formula = formulas.get(key);
+        if (formula != null) return formula.data;
+        return switch (type(col, row)) {
+            case EMPTY -> Ex2Utils.EMPTY_CELL;
+            case Ex2Utils.NUMBER -> {
+                String text = texts.get(key);
+                yield text != null ? text : canonical(values[col][row]);
+            }
+            default -> texts.get(key);
+        };
+    }
+
+    @Override
+    public Cell get(int x, int y) {
+        return isIn(x, y) ? new CellView(x, y) : null;
+    }
+
+    @Override
+    public Cell get(String entry) {
+        long ref = CellReference.parse(entry);
+        if (ref == CellReference.INVALID) return null;
+        return get(DependencyGraph.col(ref), DependencyGraph.row(ref));
+    }
+
+    @Override
+    public String value(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+        if (stale) eval();
+        return switch (type(x, y)) {
+            case EMPTY -> Ex2Utils.EMPTY_CELL;
+            case Ex2Utils.NUMBER, Ex2Utils.FORM -> String.format("%.1f", values[x][y]);
+            case Ex2Utils.ERR_FORM_FORMAT -> Ex2Utils.ERR_FORM;
+            case Ex2Utils.ERR_CYCLE_FORM -> Ex2Utils.ERR_CYCLE;
+            default -> texts.get(DependencyGraph.key(x, y));
+        };
+    }
+
+    @Override
+    public double number(int x, int y) {
+        if (!isIn(x, y)) return Double.NaN;
+        if (stale) eval();
+        byte type = type(x, y);
+        return (type == Ex2Utils.NUMBER || type == Ex2Utils.FORM) ? values[x][y] : Double.NaN;
+    }
+
+    @Override
+    public double aggregate(Formula.Function function, int fromCol, int fromRow, int toCol, int toRow) {
+        if (!isIn(fromCol, fromRow) || !isIn(toCol, toRow)) return Double.NaN;
+        return ranges.aggregate(function, fromCol, fromRow, toCol, toRow);
+    }
+
+    /** True iff the cell evaluates to ERR_FORM or to a cycle. */
+    @Override
+    public boolean isError(int x, int y) {
+        if (!isIn(x, y)) return false;
+        if (stale) eval();
+        return storedError(x, y);
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        if (!isIn(x, y)) return null;
+        eval();
+        return value(x, y);
+    }
+
+    @Override
+    public void eval() {
+        stale = false;
+        long[] keys = formulas.keys();
+        for (long key : keys) {
+            formulas.get(key).state = DepthSearch.UNVISITED;
+        }
+        for (long key : keys) {
+            int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+            if (memo.state(col, row) == DepthSearch.UNVISITED) {
+                DepthSearch.compute(col, row, dependencies, memo);
+            }
+        }
+
+        int[] depths = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            depths[i] = formulas.get(keys[i]).order;
+        }
+        for (long key : DepthSearch.sortByDepth(keys, depths).cells) {
+            evaluateFormula(DependencyGraph.col(key), DependencyGraph.row(key), formulas.get(key));
+        }
+    }
+
+    private void evaluateFormula(int col, int row, FormulaCell cell) {
+        if (cell.order == Ex2Utils.ERR_CYCLE_FORM) {
+            types[col][row] = Ex2Utils.ERR_CYCLE_FORM;
+            ranges.update(col, row, Double.NaN, true);
+            return;
+        }
+        double result = cell.formula == null ? Double.NaN : cell.formula.eval(this);
+        if (Double.isNaN(result)) {
+            types[col][row] = Ex2Utils.ERR_FORM_FORMAT;
+        } else {
+            types[col][row] = Ex2Utils.FORM;
+            values[col][row] = result;
+        }
+        ranges.update(col, row, result, Double.isNaN(result));
+    }
+
+    @Override
+    public int[][] depth() {
+        DepthSearch.Grid grid = new DepthSearch.Grid(width, height);
+        for (long key : formulas.keys()) {
+            int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+            if (grid.state(col, row) == DepthSearch.UNVISITED) {
+                DepthSearch.compute(col, row, dependencies, grid);
+            }
+        }
+        return grid.depths;
+    }
+
+    // Only formula cells have references (kept by the graph); their depth search state lives in the FormulaCell itself.
+    private final DepthSearch.Formulas dependencies = new DepthSearch.Formulas() {
+        public long[] references(int col, int row) {
+            return graph.depthPrecedents(col, row);
+        }
+
+        public boolean isIn(int col, int row) {
+            return ColumnarSheet.this.isIn(col, row);
+        }
+
+        public boolean isSelfNegating(int col, int row) {
+            FormulaCell cell = formulas.get(DependencyGraph.key(col, row));
+            return cell != null && cell.formula != null && cell.formula.isSelfNegating();
+        }
+    };
+
+    private final DepthSearch.Memo memo = new DepthSearch.Memo() {
+        public byte state(int col, int row) {
+            FormulaCell cell = formulas.get(DependencyGraph.key(col, row));
+            return cell == null ? DepthSearch.DONE : cell.state;
+        }
+
+        public int depth(int col, int row) {
+            FormulaCell cell = formulas.get(DependencyGraph.key(col, row));
+            return cell == null ? 0 : cell.order;
+        }
+
+        public void open(int col, int row) {
+            formulas.get(DependencyGraph.key(col, row)).state = DepthSearch.IN_PROGRESS;
+        }
+
+        public void finish(int col, int row, int depth) {
+            FormulaCell cell = formulas.get(DependencyGraph.key(col, row));
+            if (cell != null) {
+                cell.order = depth;
+                cell.state = DepthSearch.DONE;
+            }
+        }
+    };
+
+    @Override
+    public void save(String fileName) throws IOException {
+        SheetFiles.save(this, fileName);
+    }
+
+    @Override
+    public void load(String fileName) throws IOException {
+        SheetFiles.load(fileName, new SheetFiles.Target() {
+            public void reset(int width, int height) {
+                initializeSheet(width, height);
+            }
+
+            public void put(int col, int row, String data) {
+                set(col, row, data);
+            }
+        });
+        eval();
+    }
+
+    // A Cell materialized on demand over the column arrays; changes are written through to the sheet.
+    private final class CellView implements Cell {
+        private final int col, row;
+
+        CellView(int col, int row) {
+            this.col = col;
+            this.row = row;
+        }
+
+        @Override
+        public String getData() {
+            return data(col, row);
+        }
+
+        @Override
+        public void setData(String s) {
+            set(col, row, s);
+        }
+
+        @Override
+        public int getType() {
+            if (stale && formulas.containsKey(DependencyGraph.key(col, row))) eval();
+            byte type = type(col, row);
+            return type == EMPTY ? Ex2Utils.TEXT : type;
+        }
+
+        @Override
+        public void setType(int t) {
+            if (type(col, row) != EMPTY) {
+                types[col][row] = (byte) t;
+            }
+        }
+
+        @Override
+        public int getOrder() {
+            FormulaCell cell = formulas.get(DependencyGraph.key(col, row));
+            return cell == null ? 0 : cell.order;
+        }
+
+        @Override
+        public void setOrder(int t) {
+            FormulaCell cell = formulas.get(DependencyGraph.key(col, row));
+            if (cell != null) {
+                cell.order = t;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return CellReference.name(col, row);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A Sheet that may be used by many threads at once: writers calling set() from ingest threads while
+ * readers call value() and get() from query threads (or the GUI's drawing loop).
+ *
+ * The columns are split into stripes of a few columns, each with its own read-write lock, so neither
+ * readers nor writers take a lock shared by the whole sheet:
+ * - set() only records the new data in its stripe's pending changes; writers to different stripes
+ *   never wait for each other.
+ * - value(), get() and depth() read the cells published by the last eval(): immutable copies (see
+ *   CellSnapshot), kept per stripe. Readers of a stripe only wait while eval() publishes into that stripe.
+ * - eval() is the coordinated recalculation step: it drains the pending changes of all the stripes
+ *   into an Ex2Sheet as one batch (see Ex2Sheet.beginBatch), recalculates their dirty cones once, and
+ *   publishes the recalculated cells - locking the stripes they fall in together, so a reader of
+ *   several stripes never sees half of a recalculation. Concurrent eval() calls run one at a time.
+ *
+ * So a change made by set() is seen by readers after the next eval(), as in the GUI, which evaluates
+ * after every edit. A cell set several times between two eval() calls is recalculated once, with its
+ * last data.
+ */
+public class ConcurrentSheet implements Sheet {
+    /** The number of columns in a stripe, unless given to the constructor. */
+    public static final int DEFAULT_STRIPE_WIDTH = 4;
+
+    private final int stripeWidth;
+    private final Ex2Sheet engine; // guarded by engineLock
+    private final ReentrantLock engineLock = new ReentrantLock();
+    private volatile Layout layout; // replaced as a whole by load(), which may change the dimensions
+
+    // The dimensions of the sheet and its stripes.
+    private static final class Layout {
+        final int width, height;
+        final Stripe[] stripes;
+
+        Layout(int width, int height, int stripeWidth) {
+            this.width = width;
+            this.height = height;
+            stripes = new Stripe[(width + stripeWidth - 1) / stripeWidth];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+    }
+
+    // The columns of a stripe: the published cells, and the changes set() made since the last eval().
+    private static final class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final LongHashMap<CellSnapshot> published = new LongHashMap<>(); // only non-empty cells
+        LongHashMap<String> pending = new LongHashMap<>(); // the last data set for each cell, "" to clear it
+    }
+
+    public ConcurrentSheet(int x, int y, int stripeWidth) {
+        if (stripeWidth < 1) {
+            throw new IllegalArgumentException("stripe width must be positive: " + stripeWidth);
+        }
+        this.stripeWidth = stripeWidth;
+        this.engine = new Ex2Sheet(x, y);
+        this.layout = new Layout(x, y, stripeWidth);
+    }
+
+    public ConcurrentSheet(int x, int y) {
+        this(x, y, DEFAULT_STRIPE_WIDTH);
+    }
+
+    public ConcurrentSheet() {
+        this(Ex2Utils.WIDTH, Ex2Utils.HEIGHT);
+    }
+
+    private Stripe stripe(Layout layout, int col) {
+        return layout.stripes[col / stripeWidth];
+    }
+
+    @Override
+    public boolean isIn(int x, int y) {
+        Layout current = layout;
+        return x >= 0 && y >= 0 && x < current.width && y < current.height;
+    }
+
+    @Override
+    public int width() {
+        return layout.width;
+    }
+
+    @Override
+    public int height() {
+        return layout.height;
+    }
+
+    @Override
+    public void set(int x, int y, String c) {
+        Layout current = layout;
+        if (x < 0 || y < 0 || x >= current.width || y >= current.height) return;
+        String data = (c == null || c.trim().isEmpty()) ? Ex2Utils.EMPTY_CELL : c;
+        Stripe stripe = stripe(current, x);
+        stripe.lock.writeLock().lock();
+        try {
+            stripe.pending.put(DependencyGraph.key(x, y), data);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Cell get(int x, int y) {
+        Layout current = layout;
+        if (x < 0 || y < 0 || x >= current.width || y >= current.height) return null;
+        CellSnapshot cell = published(current, x, y);
+        return cell != null ? cell : EmptyCell.INSTANCE;
+    }
+
+    @Override
+    public Cell get(String entry) {
+        long ref = CellReference.parse(entry);
+        if (ref == CellReference.INVALID) return null;
+        return get(DependencyGraph.col(ref), DependencyGraph.row(ref));
+    }
+
+    @Override
+    public String value(int x, int y) {
+        Layout current = layout;
+        if (x < 0 || y < 0 || x >= current.width || y >= current.height) return Ex2Utils.EMPTY_CELL;
+        CellSnapshot cell = published(current, x, y);
+        return cell != null ? cell.value() : Ex2Utils.EMPTY_CELL;
+    }
+
+    private CellSnapshot published(Layout layout, int col, int row) {
+        Stripe stripe = stripe(layout, col);
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.published.get(DependencyGraph.key(col, row));
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String eval(int x, int y) {
+        if (!isIn(x, y)) return null;
+        eval();
+        Cell cell = get(x, y);
+        return cell instanceof CellSnapshot snapshot && !snapshot.value().isEmpty() ? snapshot.value() : cell.getData();
+    }
+
+    /** Applies the changes set() made so far, recalculates what they affect and publishes it to the readers. */
+    @Override
+    public void eval() {
+        engineLock.lock();
+        try {
+            Layout current = layout;
+            engine.beginBatch();
+            try {
+                for (Stripe stripe : current.stripes) {
+                    LongHashMap<String> changes = drain(stripe);
+                    changes.forEachKey(key -> engine.set(DependencyGraph.col(key), DependencyGraph.row(key), changes.get(key)));
+                }
+            } finally {
+                engine.commitBatch();
+            }
+            publish(current, engine.lastPass());
+        } finally {
+            engineLock.unlock();
+        }
+    }
+
+    private static LongHashMap<String> drain(Stripe stripe) {
+        stripe.lock.writeLock().lock();
+        try {
+            LongHashMap<String> changes = stripe.pending;
+            stripe.pending = new LongHashMap<>();
+            return changes;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    // Copies the given cells of the engine to the readers, holding the locks of all their stripes at once.
+    private void publish(Layout layout, Iterable<Long> cells) {
+        boolean[] touched = new boolean[layout.stripes.length];
+        for (long key : cells) {
+            touched[DependencyGraph.col(key) / stripeWidth] = true;
+        }
+        lockAll(layout, touched, true);
+        try {
+            for (long key : cells) {
+                int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+                LongHashMap<CellSnapshot> published = stripe(layout, col).published;
+                Cell cell = engine.get(col, row);
+                if (cell == EmptyCell.INSTANCE) {
+                    published.remove(key);
+                } else {
+                    published.put(key, new CellSnapshot(cell.getData(), engine.value(col, row), cell.getType(), cell.getOrder()));
+                }
+            }
+        } finally {
+            unlockAll(layout, touched, true);
+        }
+    }
+
+    // Locks are always taken in increasing stripe order, so two threads locking several stripes cannot deadlock.
+    private static void lockAll(Layout layout, boolean[] which, boolean write) {
+        for (int i = 0; i < which.length; i++) {
+            if (which[i]) {
+                ReentrantReadWriteLock lock = layout.stripes[i].lock;
+                (write ? lock.writeLock() : lock.readLock()).lock();
+            }
+        }
+    }
+
+    private static void unlockAll(Layout layout, boolean[] which, boolean write) {
+        for (int i = which.length - 1; i >= 0; i--) {
+            if (which[i]) {
+                ReentrantReadWriteLock lock = layout.stripes[i].lock;
+                (write ? lock.writeLock() : lock.readLock()).unlock();
+            }
+        }
+    }
+
+    /** The depths published by the last eval(), read from all the stripes at once. */
+    @Override
+    public int[][] depth() {
+        Layout current = layout;
+        int[][] depths = new int[current.width][current.height];
+        boolean[] all = new boolean[current.stripes.length];
+        java.util.Arrays.fill(all, true);
+        lockAll(current, all, false);
+        try {
+            for (Stripe stripe : current.stripes) {
+                stripe.published.forEachKey(key -> depths[DependencyGraph.col(key)][DependencyGraph.row(key)] =
+                        stripe.published.get(key).getOrder());
+            }
+        } finally {
+            unlockAll(current, all, false);
+        }
+        return depths;
+    }
+
+    /**
+     * Saves the sheet as of an eval() applying every change set() made before the call. The engine's
+     * cells are saved while no other eval() can run, so the file holds exactly that evaluation.
+     */
+    @Override
+    public void save(String fileName) throws IOException {
+        engineLock.lock();
+        try {
+            eval();
+            engine.save(fileName);
+        } finally {
+            engineLock.unlock();
+        }
+    }
+
+    /** Replaces the sheet, dropping the changes that were not evaluated yet. */
+    @Override
+    public void load(String fileName) throws IOException {
+        engineLock.lock();
+        try {
+            engine.load(fileName);
+            Layout loaded = new Layout(engine.width(), engine.height(), stripeWidth);
+            publish(loaded, engine.lastPass()); // load() recalculates every cell
+            layout = loaded;
+        } finally {
+            engineLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.*;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongConsumer;
+
+/**
+ * Evaluates a set of cells as a dataflow graph on a work-stealing ForkJoinPool.
+ * Each cell keeps a counter of the precedents (within the set) it is still waiting for, and becomes
+ * runnable the moment that counter reaches zero - there is no barrier between depth levels, so a long
+ * chain and a wide fan next to it proceed independently.
+ *
+ * The results are deterministic: a cell is evaluated only after every precedent in the set has been
+ * evaluated (the atomic countdown orders the precedent's writes before the dependent's reads), and the
+ * value of a cell depends only on the values of its precedents, so any schedule yields the same sheet
+ * as the sequential depth-ordered evaluation.
+ */
+class DataflowScheduler {
+    private final long[] cells;
+    private final int[][] successors;
+    private final AtomicIntegerArray pending;
+    private final LongConsumer evaluator;
+    private final int batchSize;
+
+    /**
+     * @param cells     the packed keys of the cells to evaluate.
+     * @param depths    the depth of each cell, -1 for cycle members (these wait for nothing and release nothing).
+     * @param graph     the sheet's dependency graph.
+     * @param evaluator evaluates a single cell given its packed key.
+     * @param batchSize how many initially ready cells one task evaluates before splitting.
+     */
+    DataflowScheduler(long[] cells, int[] depths, DependencyGraph graph, LongConsumer evaluator, int batchSize) {
+        this.cells = cells;
+        this.evaluator = evaluator;
+        this.batchSize = Math.max(1, batchSize);
+
+        Map<Long, Integer> index = new HashMap<>(cells.length * 2);
+        for (int i = 0; i < cells.length; i++) {
+            index.put(cells[i], i);
+        }
+        long[] sorted = cells.clone(); // (col,row) order, to find the cells of the set inside a range
+        Arrays.sort(sorted);
+
+        int[][] waitsFor = new int[cells.length][];
+        int[] successorCount = new int[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            waitsFor[i] = depths[i] == Ex2Utils.ERR_CYCLE_FORM ? new int[0] : precedentsInSet(cells[i], graph, index, sorted);
+            for (int p : waitsFor[i]) {
+                successorCount[p]++;
+            }
+        }
+
+        successors = new int[cells.length][];
+        int[] waitingFor = new int[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            successors[i] = new int[successorCount[i]];
+            successorCount[i] = 0;
+        }
+        for (int i = 0; i < cells.length; i++) {
+            waitingFor[i] = waitsFor[i].length;
+            for (int p : waitsFor[i]) {
+                successors[p][successorCount[p]++] = i;
+            }
+        }
+        pending = new AtomicIntegerArray(waitingFor);
+    }
+
+    // The indices of the cell's precedents that are in the set: its references, and the members inside its ranges.
+    private static int[] precedentsInSet(long cell, DependencyGraph graph, Map<Long, Integer> index, long[] sorted) {
+        int col = DependencyGraph.col(cell), row = DependencyGraph.row(cell);
+        Set<Integer> found = new LinkedHashSet<>();
+        for (long ref : graph.precedents(col, row)) {
+            Integer p = index.get(ref);
+            if (p != null) {
+                found.add(p);
+            }
+        }
+        for (Formula.Aggregate range : graph.ranges(col, row)) {
+            for (int c = range.fromCol; c <= range.toCol; c++) {
+                long last = DependencyGraph.key(c, range.toRow);
+                int at = Arrays.binarySearch(sorted, DependencyGraph.key(c, range.fromRow));
+                for (int i = at < 0 ? -at - 1 : at; i < sorted.length && sorted[i] <= last; i++) {
+                    found.add(index.get(sorted[i]));
+                }
+            }
+        }
+        found.remove(index.get(cell));
+        int[] ans = new int[found.size()];
+        int n = 0;
+        for (int p : found) {
+            ans[n++] = p;
+        }
+        return ans;
+    }
+
+    /**
+     * Evaluates all the cells on the given pool and returns when the last one is done.
+     */
+    void run(ForkJoinPool pool) {
+        int[] ready = new int[cells.length];
+        int count = 0;
+        for (int i = 0; i < cells.length; i++) {
+            if (pending.get(i) == 0) {
+                ready[count++] = i;
+            }
+        }
+        pool.invoke(new Batch(null, ready, 0, count));
+    }
+
+    // Evaluates indices[from..to), then follows each cell's newly released successors.
+    @SuppressWarnings("serial") // it holds the scheduler, so it is never serialized
+    private final class Batch extends CountedCompleter<Void> {
+        private final int[] indices;
+        private final int from, to;
+
+        Batch(CountedCompleter<?> parent, int[] indices, int from, int to) {
+            super(parent);
+            this.indices = indices;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void compute() {
+            int end = to;
+            while (end - from > batchSize) {
+                int mid = (from + end) >>> 1;
+                addToPendingCount(1);
+                new Batch(this, indices, mid, end).fork();
+                end = mid;
+            }
+            for (int i = from; i < end; i++) {
+                runChain(indices[i]);
+            }
+            tryComplete();
+        }
+
+        // Evaluates a cell and keeps going with one released successor, forking the others.
+        private void runChain(int current) {
+            while (current >= 0) {
+                evaluator.accept(cells[current]);
+                int next = -1;
+                int[] released = null;
+                int releasedCount = 0;
+                for (int succ : successors[current]) {
+                    if (pending.decrementAndGet(succ) != 0) continue;
+                    if (next < 0) {
+                        next = succ;
+                    } else {
+                        if (released == null) released = new int[successors[current].length];
+                        released[releasedCount++] = succ;
+                    }
+                }
+                if (released != null) {
+                    addToPendingCount(1);
+                    new Batch(this, released, 0, releasedCount).fork();
+                }
+                current = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.*;
+
+/**
+ * The reference graph of an Ex2Sheet.
+ * For every cell it keeps the cells its formula references (precedents) and the cells whose
+ * formulas reference it (dependents), so neither direction has to be rediscovered by scanning formulas.
+ * The ranges of aggregate functions are kept as rectangles (see RangeDependents) rather than expanded
+ * into an edge per covered cell. Cells are keyed by a packed (col,row) long, see key(int, int).
+ */
+public class DependencyGraph {
+    private static final long[] NO_REFERENCES = new long[0];
+
+    private final Map<Long, long[]> precedents = new HashMap<>();
+    private final Map<Long, Set<Long>> dependents = new HashMap<>();
+    private final Map<Long, List<Formula.Aggregate>> ranges = new HashMap<>();
+    private final RangeDependents rangeDependents = new RangeDependents();
+    private final TreeSet<Long> formulaCells = new TreeSet<>(); // cells with references or ranges, in (col,row) order
+
+    public static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    public static int col(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int row(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Replaces the outgoing references of a cell and updates the reverse index by the difference
+     * between the old and the new reference sets.
+     * @param references the packed keys the cell's formula references (may contain duplicates).
+     */
+    public void setReferences(int col, int row, long[] references) {
+        long cell = key(col, row);
+        long[] old = precedents.getOrDefault(cell, NO_REFERENCES);
+        long[] updated = distinct(references);
+        if (Arrays.equals(old, updated)) {
+            return;
+        }
+
+        for (long ref : old) {
+            if (Arrays.binarySearch(updated, ref) < 0) {
+                removeDependent(ref, cell);
+            }
+        }
+        for (long ref : updated) {
+            if (Arrays.binarySearch(old, ref) < 0) {
+                dependents.computeIfAbsent(ref, k -> new HashSet<>()).add(cell);
+            }
+        }
+
+        if (updated.length == 0) {
+            precedents.remove(cell);
+        } else {
+            precedents.put(cell, updated);
+        }
+        updateFormulaCell(cell);
+    }
+
+    /**
+     * Replaces the ranges read by the aggregate functions of a cell's formula.
+     * @param cellRanges the ranges, or null / empty for none.
+     */
+    public void setRanges(int col, int row, List<Formula.Aggregate> cellRanges) {
+        long cell = key(col, row);
+        List<Formula.Aggregate> old = ranges.remove(cell);
+        if (old != null) {
+            for (Formula.Aggregate range : old) {
+                rangeDependents.remove(cell, range);
+            }
+        }
+        if (cellRanges != null && !cellRanges.isEmpty()) {
+            ranges.put(cell, cellRanges);
+            for (Formula.Aggregate range : cellRanges) {
+                rangeDependents.add(cell, range);
+            }
+        }
+        updateFormulaCell(cell);
+    }
+
+    private void updateFormulaCell(long cell) {
+        if (precedents.containsKey(cell) || ranges.containsKey(cell)) {
+            formulaCells.add(cell);
+        } else {
+            formulaCells.remove(cell);
+        }
+    }
+
+    private void removeDependent(long ref, long cell) {
+        Set<Long> set = dependents.get(ref);
+        if (set != null) {
+            set.remove(cell);
+            if (set.isEmpty()) {
+                dependents.remove(ref);
+            }
+        }
+    }
+
+    // Sorted and without duplicates, so diffs can use binary search.
+    private static long[] distinct(long[] references) {
+        if (references == null || references.length == 0) {
+            return NO_REFERENCES;
+        }
+        long[] sorted = references.clone();
+        Arrays.sort(sorted);
+        int size = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    /**
+     * @return the distinct cells referenced by the formula at (col,row), sorted by key. Do not modify.
+     */
+    public long[] precedents(int col, int row) {
+        return precedents.getOrDefault(key(col, row), NO_REFERENCES);
+    }
+
+    /**
+     * @return the ranges read by the formula at (col,row). Do not modify.
+     */
+    public List<Formula.Aggregate> ranges(int col, int row) {
+        return ranges.getOrDefault(key(col, row), Collections.emptyList());
+    }
+
+    /**
+     * @return the cells whose formulas reference (col,row) directly, or read it through a range.
+     */
+    public Set<Long> dependents(int col, int row) {
+        Set<Long> set = dependents.get(key(col, row));
+        if (rangeDependents.isEmpty()) {
+            return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+        }
+        Set<Long> all = set == null ? new HashSet<>() : new HashSet<>(set);
+        rangeDependents.collect(col, row, all);
+        return all;
+    }
+
+    /**
+     * The cells the depth of (col,row) is computed from: its precedents and, for each range, the
+     * formulas inside it - every other cell of a range has depth 0 - plus the range's far corner,
+     * so a range reaching out of the sheet is still seen (and an all-constant range still counts).
+     * This costs O(columns * log cells) per range instead of its size.
+     */
+    public long[] depthPrecedents(int col, int row) {
+        long cell = key(col, row);
+        long[] direct = precedents.getOrDefault(cell, NO_REFERENCES);
+        List<Formula.Aggregate> cellRanges = ranges.get(cell);
+        if (cellRanges == null) {
+            return direct;
+        }
+        List<Long> out = new ArrayList<>();
+        for (Formula.Aggregate range : cellRanges) {
+            out.add(key(range.toCol, range.toRow));
+            for (int c = range.fromCol; c <= range.toCol; c++) {
+                out.addAll(formulaCells.subSet(key(c, range.fromRow), true, key(c, range.toRow), true));
+            }
+        }
+        long[] all = Arrays.copyOf(direct, direct.length + out.size());
+        for (int i = 0; i < out.size(); i++) {
+            all[direct.length + i] = out.get(i);
+        }
+        return all;
+    }
+
+    public void clear() {
+        precedents.clear();
+        dependents.clear();
+        ranges.clear();
+        rangeDependents.clear();
+        formulaCells.clear();
+    }
+}
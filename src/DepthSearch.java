@@ -0,0 +1,245 @@
+import java.util.*;
+
+/**
+ * The dependency depth computation shared by the Sheet implementations (see Sheet.depth()).
+ * A sheet describes its formulas through Formulas, and keeps the per-cell search state and
+ * the resolved depths in a Memo of its choice (a dense grid, or a map over a few dirty cells).
+ */
+class DepthSearch {
+    static final byte UNVISITED = 0, IN_PROGRESS = 1, DONE = 2;
+
+    /** The reference structure of a sheet. */
+    interface Formulas {
+        /** The packed (see DependencyGraph.key) cells referenced by the formula at col,row - empty for any other cell. */
+        long[] references(int col, int row);
+
+        boolean isIn(int col, int row);
+
+        /** True iff the formula at col,row is "X-X", which is not considered a cycle when reached again. */
+        boolean isSelfNegating(int col, int row);
+    }
+
+    /** Where compute() keeps the per-cell DFS state and the depths it has resolved. */
+    interface Memo {
+        byte state(int col, int row);
+        int depth(int col, int row);
+        void open(int col, int row);
+        void finish(int col, int row, int depth);
+    }
+
+    /** Dense memo covering a whole sheet. */
+    static final class Grid implements Memo {
+        final int[][] depths;
+        final byte[][] state;
+
+        Grid(int width, int height) {
+            depths = new int[width][height];
+            state = new byte[width][height];
+        }
+
+        public byte state(int col, int row) { return state[col][row]; }
+        public int depth(int col, int row) { return depths[col][row]; }
+        public void open(int col, int row) { state[col][row] = IN_PROGRESS; }
+        public void finish(int col, int row, int depth) {
+            depths[col][row] = depth;
+            state[col][row] = DONE;
+        }
+    }
+
+    // An open cell on the explicit DFS stack: its references and the deepest one seen so far.
+    private static final class Frame {
+        final int col, row;
+        final long[] references;
+        final int index; // the order in which the cells of this search were opened
+        int lowest; // the lowest index of an open cell reachable from this one (Tarjan's lowlink)
+        int next;
+        int maxDepth;
+        boolean cyclic;
+
+        Frame(int col, int row, long[] references, int index) {
+            this.col = col;
+            this.row = row;
+            this.references = references;
+            this.index = lowest = index;
+        }
+
+        void accept(int depth) {
+            if (depth == Ex2Utils.ERR_CYCLE_FORM) {
+                cyclic = true;
+            } else {
+                maxDepth = Math.max(maxDepth, depth);
+            }
+        }
+
+        int result() {
+            if (cyclic) return Ex2Utils.ERR_CYCLE_FORM;
+            return references.length == 0 ? 0 : maxDepth + 1;
+        }
+    }
+
+    /**
+     * Memoized iterative DFS: every cell is expanded at most once per memo, so a whole sheet
+     * costs O(cells + references). A reference to a cell that is still open closes a cycle.
+     *
+     * The depth of a cell is what the recursive definition gives when starting from that cell: a
+     * reference back to a cell on the path is -1, unless that cell's own formula is "X-X" (0).
+     * Outside of cycles that does not depend on the path, so the depths are memoized as is. The cells of
+     * a cycle (a strongly connected component, found as in Tarjan's algorithm) stay open until the
+     * whole component is found, and are then resolved together: all -1, or - if the component holds an
+     * "X-X" formula, whose re-entry is not a cycle - each by the path search from that cell.
+     */
+    static void compute(int startCol, int startRow, Formulas formulas, Memo memo) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        List<Frame> component = new ArrayList<>(); // the opened cells whose component is not resolved yet
+        Map<Long, Integer> indices = new HashMap<>();
+        Frame start = open(startCol, startRow, formulas, memo, component, indices);
+        if (start == null) return;
+        stack.push(start);
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.next < frame.references.length) {
+                long ref = frame.references[frame.next++];
+                int col = DependencyGraph.col(ref), row = DependencyGraph.row(ref);
+                if (!formulas.isIn(col, row)) {
+                    frame.accept(Ex2Utils.ERR_CYCLE_FORM);
+                } else if (memo.state(col, row) == DONE) {
+                    frame.accept(memo.depth(col, row));
+                } else if (memo.state(col, row) == IN_PROGRESS) {
+                    frame.lowest = Math.min(frame.lowest, indices.get(ref));
+                    frame.accept(formulas.isSelfNegating(col, row) ? 0 : Ex2Utils.ERR_CYCLE_FORM);
+                } else {
+                    Frame child = open(col, row, formulas, memo, component, indices);
+                    if (child == null) {
+                        frame.accept(memo.depth(col, row));
+                    } else {
+                        stack.push(child);
+                    }
+                }
+                continue;
+            }
+
+            stack.pop();
+            int depth = frame.lowest < frame.index ? frame.result() : resolve(frame, component, formulas, memo);
+            if (!stack.isEmpty()) {
+                Frame parent = stack.peek();
+                parent.lowest = Math.min(parent.lowest, frame.lowest);
+                parent.accept(depth);
+            }
+        }
+    }
+
+    // Finishes the component rooted at the frame (the cells opened after it that are still unresolved),
+    // and returns the depth of the root.
+    private static int resolve(Frame root, List<Frame> component, Formulas formulas, Memo memo) {
+        int from = component.size() - 1;
+        while (component.get(from) != root) {
+            from--;
+        }
+        List<Frame> members = component.subList(from, component.size());
+        if (members.size() == 1) {
+            memo.finish(root.col, root.row, root.result()); // a re-entry into the cell itself, if any, was resolved by accept()
+        } else {
+            Set<Long> cells = new HashSet<>();
+            boolean selfNegating = false;
+            for (Frame member : members) {
+                cells.add(DependencyGraph.key(member.col, member.row));
+                selfNegating |= formulas.isSelfNegating(member.col, member.row);
+            }
+            int[] depths = new int[members.size()];
+            for (int i = 0; i < depths.length; i++) {
+                Frame member = members.get(i);
+                depths[i] = selfNegating ? pathDepth(DependencyGraph.key(member.col, member.row), cells, new HashSet<>(), formulas, memo)
+                        : Ex2Utils.ERR_CYCLE_FORM;
+            }
+            for (int i = 0; i < depths.length; i++) {
+                memo.finish(members.get(i).col, members.get(i).row, depths[i]);
+            }
+        }
+        int depth = memo.depth(root.col, root.row);
+        members.clear();
+        return depth;
+    }
+
+    // The recursive definition from the cell, following the path inside its component; the cells out of
+    // it are all finished.
+    private static int pathDepth(long cell, Set<Long> component, Set<Long> path, Formulas formulas, Memo memo) {
+        int col = DependencyGraph.col(cell), row = DependencyGraph.row(cell);
+        long[] references = formulas.references(col, row);
+        path.add(cell);
+        try {
+            int maxDepth = 0;
+            for (long ref : references) {
+                int refCol = DependencyGraph.col(ref), refRow = DependencyGraph.row(ref);
+                int depth;
+                if (!formulas.isIn(refCol, refRow)) {
+                    depth = Ex2Utils.ERR_CYCLE_FORM;
+                } else if (!component.contains(ref)) {
+                    depth = memo.depth(refCol, refRow);
+                } else if (path.contains(ref)) {
+                    depth = formulas.isSelfNegating(refCol, refRow) ? 0 : Ex2Utils.ERR_CYCLE_FORM;
+                } else {
+                    depth = pathDepth(ref, component, path, formulas, memo);
+                }
+                if (depth == Ex2Utils.ERR_CYCLE_FORM) return Ex2Utils.ERR_CYCLE_FORM;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+            return maxDepth + 1;
+        } finally {
+            path.remove(cell);
+        }
+    }
+
+    // Returns null when the cell's depth is known without following references (it is then DONE).
+    private static Frame open(int col, int row, Formulas formulas, Memo memo, List<Frame> component,
+                              Map<Long, Integer> indices) {
+        long[] references = formulas.references(col, row);
+        if (references.length == 0) {
+            memo.finish(col, row, 0);
+            return null;
+        }
+        memo.open(col, row);
+        Frame frame = new Frame(col, row, references, indices.size());
+        indices.put(DependencyGraph.key(col, row), frame.index);
+        component.add(frame);
+        return frame;
+    }
+
+    /** Cells sorted by depth; level i occupies cells[levelStart[i] .. levelStart[i+1]). */
+    static final class Order {
+        final long[] cells;
+        final int[] levelStart;
+
+        Order(long[] cells, int[] levelStart) {
+            this.cells = cells;
+            this.levelStart = levelStart;
+        }
+    }
+
+    /**
+     * Counting sort of cells by depth in O(cells + maxDepth): cycle members (-1) come first, then
+     * depth 0, 1, ..., so every cell comes after all the cells it references.
+     */
+    static Order sortByDepth(long[] keys, int[] depths) {
+        int maxDepth = 0;
+        for (int depth : depths) {
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        int[] next = new int[maxDepth + 2]; // slot 0 holds -1, slot d+1 holds depth d
+        for (int depth : depths) {
+            next[depth + 1]++;
+        }
+        int[] levelStart = new int[next.length + 1];
+        for (int slot = 0, start = 0; slot < next.length; slot++) {
+            int count = next[slot];
+            levelStart[slot] = next[slot] = start;
+            start += count;
+        }
+        levelStart[next.length] = keys.length;
+        long[] sorted = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[next[depths[i] + 1]++] = keys[i];
+        }
+        return new Order(sorted, levelStart);
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * The cell returned by Ex2Sheet.get() for every position that holds no data.
+ * Empty cells are not stored by the sheet, so this single instance is shared between all of them
+ * and cannot be changed - use Sheet.set() to put data in a position.
+ */
+public final class EmptyCell implements Cell {
+    public static final EmptyCell INSTANCE = new EmptyCell();
+
+    private EmptyCell() {
+    }
+
+    @Override
+    public String getData() {
+        return Ex2Utils.EMPTY_CELL;
+    }
+
+    @Override
+    public void setData(String s) {
+        throw new UnsupportedOperationException("The shared empty cell is immutable, use Sheet.set()");
+    }
+
+    @Override
+    public int getType() {
+        return Ex2Utils.TEXT;
+    }
+
+    @Override
+    public void setType(int t) {
+        throw new UnsupportedOperationException("The shared empty cell is immutable, use Sheet.set()");
+    }
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+
+    @Override
+    public void setOrder(int t) {
+        throw new UnsupportedOperationException("The shared empty cell is immutable, use Sheet.set()");
+    }
+
+    @Override
+    public String toString() {
+        return Ex2Utils.EMPTY_CELL;
+    }
+}
@@ -88,7 +88,7 @@ public class     Ex2GUI {
 			StdDrawEx2.line(xs, 0, xs, max_y);
 			int yy = max_y - (y + 1);
 			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			StdDrawEx2.text(xc, max_y + y_height, CellReference.columnName(y));
 		}
 	}
 	/**
@@ -124,7 +124,7 @@ public class     Ex2GUI {
 		if(table.isIn(xx,yy)) {
 			Cell cc = table.get(xx,yy);
 			cord = new CellEntry(xx, yy);
-			String ww = cord+": "+cc.toString()+" : ";
+			String ww = cord+" : ";
 			StdDrawEx2.text(Ex2Utils.GUI_X_START, Ex2Utils.MAX_X-1, ww);
 			StdDrawEx2.show();
 			if(Ex2Utils.Debug) {System.out.println(ww);}
@@ -134,11 +134,7 @@ public class     Ex2GUI {
 				table.set(xx,yy,s1);
 			}
 			else {
-				table.set(xx, yy, c);
-				int[][] calc_d = table.depth();
-				if (calc_d[xx][yy] == Ex2Utils.ERR) {
-					table.get(xx,yy).setType(Ex2Utils.ERR_CYCLE_FORM);
-				}
+				table.set(xx, yy, c); // eval() marks cycles, and only recomputes what this edit touched.
 			}
 			table.eval();
 			StdDrawEx2.resetXY();
@@ -1,13 +1,30 @@
-import java.io.*;
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-public class Ex2Sheet implements Sheet {
-    private Cell[][] table;
-    private static final Pattern CELL_REFERENCE_PATTERN = Pattern.compile("[A-Za-z][0-9]+");
-    private static final Pattern SELF_NEGATING_PATTERN = Pattern.compile("([A-Za-z][0-9]+)-\\1");
-    private static final Pattern SCIENTIFIC_NOTATION_PATTERN = Pattern.compile("^-?\\d*\\.?\\d+[eE][-+]?\\d+$");
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class Ex2Sheet implements Sheet, Formula.Values {
+    private LongHashMap<SCell> cells; // only non-empty cells are stored, keyed by DependencyGraph.key(col,row)
+    private int width, height;
+    private final DependencyGraph graph = new DependencyGraph();
+    private RangeIndex ranges; // the evaluated numbers of the columns that aggregate functions read
+    private Set<Long> dirty = new HashSet<>(); // cells whose value is stale since the last eval()
+    private int batchDepth; // open beginBatch() calls
+    private final Set<Long> batched = new HashSet<>(); // cells set in the batch, whose edges and dirty cones are not applied yet
+    private Set<Long> lastPass = Collections.emptySet(); // the cells recomputed or cleared by the last evaluation pass
+    private boolean fullRecalculation = true;
+    private boolean incremental = true;
+    private ForkJoinPool evaluationPool; // null: evaluate on the calling thread
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private boolean dataflow;
+    private FormulaCache formulaCache; // null: every formula is computed
+    private FormulaCompiler compiler; // null: formulas are interpreted
+    private final Formula.Subtrees subtrees = new Formula.Subtrees(); // shared by the formulas of this sheet
+    private volatile SheetSnapshot snapshot; // the last published evaluation, null: snapshots are off
+    private SheetJournal journal; // null: changes are not journaled
+
+    /** Depth levels smaller than this are evaluated sequentially even when a pool is set. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 512;
 
     // Constructors
     public Ex2Sheet(int x, int y) {
@@ -22,24 +39,48 @@ public class Ex2Sheet implements Sheet {
 
     // Private initialization methods
     private void initializeSheet(int cols, int rows) {
-        table = new SCell[cols][rows];
-        initializeEmptyCells(cols, rows);
-    }
+        width = cols;
+        height = rows;
+        cells = new LongHashMap<>();
+        ranges = new RangeIndex(cols, rows, new RangeIndex.Source() {
+            public double number(int col, int row) {
+                return storedNumber(col, row);
+            }
 
-    private void initializeEmptyCells(int cols, int rows) {
-        for (int col = 0; col < cols; col++) {
-            for (int row = 0; row < rows; row++) {
-                createEmptyCell(col, row);
+            public boolean isError(int col, int row) {
+                return storedError(col, row);
             }
-        }
+        });
+        graph.clear();
+        dirty = new HashSet<>();
+        batched.clear();
+        fullRecalculation = true;
+    }
+
+    // The table SCell parses this sheet's formulas with, so identical subexpressions are kept once.
+    Formula.Subtrees subtrees() {
+        return subtrees;
+    }
+
+    // The stored cell at (col,row), or null if the position is empty.
+    private SCell cell(int col, int row) {
+        return cells.get(DependencyGraph.key(col, row));
+    }
+
+    // The number last evaluated for (col,row), without evaluating it: what the range index holds.
+    private double storedNumber(int col, int row) {
+        SCell sCell = cell(col, row);
+        return sCell == null ? Double.NaN : sCell.getNumber();
     }
 
-    private void createEmptyCell(int col, int row) {
-        table[col][row] = new SCell(Ex2Utils.EMPTY_CELL, this, generateCellName(col, row));
+    // Whether (col,row) held an error when it was last evaluated, without evaluating it.
+    private boolean storedError(int col, int row) {
+        SCell sCell = cell(col, row);
+        return sCell != null && isError(sCell.getType());
     }
 
-    private String generateCellName(int col, int row) {
-        return String.valueOf((char)('A' + col)) + row;
+    private static boolean isError(int type) {
+        return type == Ex2Utils.ERR_FORM_FORMAT || type == Ex2Utils.ERR_CYCLE_FORM;
     }
 
     // Interface implementation methods
@@ -50,58 +91,259 @@ public class Ex2Sheet implements Sheet {
 
     @Override
     public int width() {
-        return table.length;
+        return width;
     }
 
     @Override
     public int height() {
-        return table[0].length;
+        return height;
     }
 
     @Override
     public void set(int col, int row, String val) {
         if (!isIn(col, row)) return;
         String value = normalizeValue(val);
-        table[col][row] = new SCell(value, this, generateCellName(col, row));
+        if (value.equals(get(col, row).getData())) return;
+        long key = DependencyGraph.key(col, row);
+        if (value.isEmpty()) {
+            cells.remove(key);
+        } else {
+            cells.put(key, new SCell(value, this, col, row));
+        }
+        dataChanged(col, row, value);
     }
 
-    private String normalizeValue(String val) {
-        return (val == null || val.trim().isEmpty()) ? Ex2Utils.EMPTY_CELL : val;
+    // Called by SCell.setData() after the data of one of this sheet's cells was changed in place.
+    void dataChanged(SCell sCell, int col, int row) {
+        long key = DependencyGraph.key(col, row);
+        if (cells.get(key) != sCell) return; // not (or no longer) stored in this sheet
+        String value = normalizeValue(sCell.getData());
+        if (value.isEmpty()) {
+            cells.remove(key);
+        }
+        dataChanged(col, row, value);
     }
 
-    @Override
-    public Cell get(int x, int y) {
-        return isIn(x, y) ? table[x][y] : null;
+    // Brings the graph, the dirty set, the range index and the journal up to date with new data at col,row.
+    private void dataChanged(int col, int row, String value) {
+        long key = DependencyGraph.key(col, row);
+        if (journal != null) {
+            journal.record(col, row, value);
+        }
+        ranges.update(col, row, Double.NaN, false); // until the new data is evaluated
+        if (batchDepth > 0) {
+            batched.add(key);
+            return;
+        }
+        updateReferences(col, row);
+        markDirty(Collections.singleton(key));
     }
 
-    @Override
-    public Cell get(String entry) {
-        try {
-            int[] coords = parseCellReference(entry);
-            return get(coords[0], coords[1]);
-        } catch (Exception e) {
-            return null;
+    /**
+     * Starts a batch of set() calls: their dependency edges and dirty cones are applied once, by the
+     * matching commitBatch(), which then recalculates the union of the cones in a single eval() - instead
+     * of once per set() for every edge, and once per read for the values. A cell set several times in a
+     * batch is processed once, with its last data. Batches may be nested; the outermost commit applies them.
+     * Reading the sheet inside a batch applies the sets made so far (as reading it after them would),
+     * and the batch goes on.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Ends the batch started by the matching beginBatch().
+     * @throws IllegalStateException if no batch was begun.
+     */
+    public void commitBatch() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("commitBatch() without beginBatch()");
         }
+        if (--batchDepth == 0) {
+            applyBatch();
+            eval();
+        }
+    }
+
+    // Brings the dependency graph and the dirty set up to date with the cells set in the batch so far.
+    private void applyBatch() {
+        if (batched.isEmpty()) return;
+        for (long key : batched) {
+            updateReferences(DependencyGraph.col(key), DependencyGraph.row(key));
+        }
+        markDirty(batched); // one walk over the union of the cones
+        batched.clear();
+    }
+
+    // Marks the cells and everything that transitively depends on them for the next eval().
+    private void markDirty(Collection<Long> changed) {
+        Deque<Long> pending = new ArrayDeque<>(changed);
+        while (!pending.isEmpty()) {
+            long key = pending.pop();
+            if (dirty.add(key)) {
+                for (long dependent : graph.dependents(DependencyGraph.col(key), DependencyGraph.row(key))) {
+                    pending.push(dependent);
+                }
+            }
+        }
+    }
+
+    /**
+     * In incremental mode (the default) eval() recomputes only the cells changed by set() since the
+     * last evaluation and their transitive dependents. When off, every eval() recomputes the whole sheet.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
     }
 
-    private int[] parseCellReference(String entry) {
-        if (entry == null || entry.trim().isEmpty()) {
-            throw new IllegalArgumentException("Invalid cell reference: empty input");
+    /**
+     * Enables parallel evaluation: cells of the same depth never reference each other, so each depth
+     * level is split across the given pool, with the levels themselves evaluated one after the other.
+     * @param pool the pool to evaluate on, or null to evaluate sequentially (the default).
+     */
+    public void setEvaluationPool(ForkJoinPool pool) {
+        this.evaluationPool = pool;
+    }
+
+    /**
+     * @param threshold the minimal number of cells in a depth level (and in each forked task) for it to be
+     *                  evaluated in parallel; smaller levels are not worth the task overhead.
+     */
+    public void setParallelThreshold(int threshold) {
+        this.parallelThreshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Switches the parallel evaluation (see setEvaluationPool) between depth levels separated by barriers
+     * (false, the default) and a dataflow schedule where each cell runs as soon as its precedents are done
+     * (see DataflowScheduler). Both produce exactly the values of the sequential evaluation, which is
+     * what eval() does when no pool is set - so clearing the pool is the switch to compare against.
+     */
+    public void setDataflowScheduling(boolean dataflow) {
+        this.dataflow = dataflow;
+    }
+
+    /**
+     * Lets formulas reuse the results of earlier evaluations of the same canonical formula over inputs
+     * that have not changed since - e.g. a templated sheet repeating a formula in many cells.
+     * @param cache the cache to use (it may be shared with other sheets), or null for none (the default).
+     */
+    public void setFormulaCache(FormulaCache cache) {
+        this.formulaCache = cache;
+    }
+
+    /**
+     * Turns on the publication of a snapshot after every evaluation, for readers on other threads (see
+     * snapshot()). Each snapshot costs a copy of the recalculated cells, so it is off by default.
+     */
+    public void setSnapshots(boolean on) {
+        if (!on) {
+            snapshot = null;
+        } else if (snapshot == null) {
+            eval();
+            List<Long> stored = new ArrayList<>(cells.size());
+            cells.forEachKey(stored::add);
+            snapshot = SheetSnapshot.empty(width, height).with(stored, this);
         }
+    }
 
-        entry = entry.trim().toUpperCase();
-        if (!entry.matches("[A-Z][0-9]+")) {
-            throw new IllegalArgumentException("Invalid cell reference format: " + entry);
+    /**
+     * The sheet as of the last completed evaluation, which may be read from any thread without locking
+     * while this sheet is changed and recalculated: a recalculation in progress is never seen, only
+     * replaced, as a whole, by the next snapshot once it completes.
+     * @throws IllegalStateException if snapshots are off (see setSnapshots).
+     */
+    public SheetSnapshot snapshot() {
+        SheetSnapshot last = snapshot;
+        if (last == null) {
+            throw new IllegalStateException("snapshots are off, see setSnapshots()");
         }
+        return last;
+    }
 
-        int col = entry.charAt(0) - 'A';
-        int row = Integer.parseInt(entry.substring(1));
+    // Attached by SheetJournal.open(): every change made by set() is recorded to it from now on.
+    void setJournal(SheetJournal journal) {
+        this.journal = journal;
+    }
 
-        if (!isIn(col, row)) {
-            throw new IllegalArgumentException("Cell reference out of bounds: " + entry);
+    void detachJournal(SheetJournal journal) {
+        if (this.journal == journal) {
+            this.journal = null;
         }
+    }
 
-        return new int[]{col, row};
+    /**
+     * Compiles the formulas evaluated more often than the compiler's threshold to bytecode - worth it
+     * for sheets recalculated many times. Results are the same as the interpreter's.
+     * @param compiler the compiler to use (it may be shared with other sheets), or null to interpret only (the default).
+     */
+    public void setCompiler(FormulaCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    // Keeps the dependency graph (and the range index) in sync with the formula now stored at (col,row).
+    private void updateReferences(int col, int row) {
+        SCell sCell = cell(col, row);
+        Formula formula = sCell == null ? null : sCell.getFormula();
+        graph.setReferences(col, row, formula == null ? null : formula.references());
+        List<Formula.Aggregate> aggregates = formula == null ? null : formula.aggregates();
+        graph.setRanges(col, row, aggregates);
+        if (aggregates != null) {
+            for (Formula.Aggregate aggregate : aggregates) {
+                ranges.cover(aggregate.fromCol, aggregate.toCol, aggregate.toRow);
+            }
+        }
+    }
+
+    private String normalizeValue(String val) {
+        return (val == null || val.trim().isEmpty()) ? Ex2Utils.EMPTY_CELL : val;
+    }
+
+    /**
+     * @return the cells whose formulas reference the x,y cell directly, or through a range.
+     */
+    public List<Index2D> dependents(int x, int y) {
+        applyBatch();
+        return toEntries(graph.dependents(x, y));
+    }
+
+    /**
+     * @return the cells referenced by the formula at x,y. The ranges of its aggregate functions are not
+     * expanded into their cells.
+     */
+    public List<Index2D> precedents(int x, int y) {
+        applyBatch();
+        List<Long> keys = new ArrayList<>();
+        for (long key : graph.precedents(x, y)) {
+            keys.add(key);
+        }
+        return toEntries(keys);
+    }
+
+    private List<Index2D> toEntries(Collection<Long> keys) {
+        List<Index2D> entries = new ArrayList<>(keys.size());
+        for (long key : keys) {
+            entries.add(new CellEntry(DependencyGraph.col(key), DependencyGraph.row(key)));
+        }
+        return entries;
+    }
+
+    @Override
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) return null;
+        SCell sCell = cell(x, y);
+        return sCell != null ? sCell : EmptyCell.INSTANCE;
+    }
+
+    @Override
+    public Cell get(String entry) {
+        long ref = CellReference.parse(entry);
+        if (ref == CellReference.INVALID) return null;
+        return get(DependencyGraph.col(ref), DependencyGraph.row(ref));
     }
 
     @Override
@@ -110,11 +352,16 @@ public class Ex2Sheet implements Sheet {
             return Ex2Utils.EMPTY_CELL;
         }
 
-        Cell cell = table[x][y];
-        if (!(cell instanceof SCell sCell)) {
+        SCell sCell = cell(x, y);
+        if (sCell == null) {
             return Ex2Utils.EMPTY_CELL;
         }
 
+        applyBatch();
+        if (dirty.contains(DependencyGraph.key(x, y))) {
+            eval();
+        }
+
         String evalValue = sCell.getEvaluatedValue();
         if (evalValue != null) {
             return evalValue;
@@ -124,69 +371,191 @@ public class Ex2Sheet implements Sheet {
         return sCell.getEvaluatedValue();
     }
 
+    /**
+     * The numeric value of the x,y cell as seen by formulas referencing it.
+     * @return the cell's value, or NaN if it is out of this sheet or does not evaluate to a number.
+     */
+    @Override
+    public double number(int x, int y) {
+        SCell sCell = isIn(x, y) ? cell(x, y) : null;
+        if (sCell == null) {
+            return Double.NaN;
+        }
+        applyBatch();
+        if (dirty.contains(DependencyGraph.key(x, y))) {
+            eval();
+        }
+        if (!sCell.isEvaluated()) {
+            if (sCell.isEvaluating()) {
+                return Double.NaN; // a reference back into a cell being evaluated: never evaluate it again from within
+            }
+            evaluateCell(x, y);
+        }
+        return sCell.getNumber();
+    }
+
+    /**
+     * Answered by the range index, from the numbers of the last evaluation: when called by a formula
+     * during eval(), every cell of the range was evaluated before it.
+     */
+    @Override
+    public double aggregate(Formula.Function function, int fromCol, int fromRow, int toCol, int toRow) {
+        if (!isIn(fromCol, fromRow) || !isIn(toCol, toRow)) return Double.NaN;
+        return ranges.aggregate(function, fromCol, fromRow, toCol, toRow);
+    }
+
+    /** As of the cell's last evaluation, like aggregate(). */
+    @Override
+    public boolean isError(int x, int y) {
+        return isIn(x, y) && storedError(x, y);
+    }
+
     @Override
     public void eval() {
+        applyBatch();
+        if (incremental && !fullRecalculation) {
+            evaluateDirtyCells();
+            publishSnapshot(false);
+            return;
+        }
+        fullRecalculation = false;
         resetEvaluatedValues();
-        int[][] depths = depth();
-        evaluateCellsByDepth(depths);
-    }
+        dirty = new HashSet<>(cells.size() * 2);
+        cells.forEachKey(dirty::add);
+        evaluateDirtyCells();
+        publishSnapshot(true);
+    }
+
+    // Swaps in a snapshot of the pass just completed: the previous one with the cells of the pass
+    // copied, or, after a full recalculation (which may follow a load() or clear cells it does not
+    // visit), a snapshot of the stored cells only.
+    private void publishSnapshot(boolean full) {
+        SheetSnapshot last = snapshot;
+        if (last == null) return;
+        if (full) {
+            snapshot = last.cleared(width, height).with(lastPass, this);
+        } else if (!lastPass.isEmpty()) {
+            snapshot = last.with(lastPass, this);
+        }
+    }
+
+    /**
+     * Recomputes the dirty cone only: depths are recalculated for the dirty cells (clean cells keep
+     * the order stored by the previous pass), and the cone is evaluated in increasing depth.
+     * A full recalculation is the same pass with every stored cell marked dirty.
+     */
+    private void evaluateDirtyCells() {
+        lastPass = Collections.emptySet();
+        if (dirty.isEmpty()) return;
+        Set<Long> cone = dirty;
+        dirty = new HashSet<>();
+        lastPass = cone;
+
+        ConeDepths memo = new ConeDepths(cone);
+        for (long key : cone) {
+            int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+            if (memo.state(col, row) == DepthSearch.UNVISITED) {
+                DepthSearch.compute(col, row, formulas, memo);
+            }
+        }
 
-    private void resetEvaluatedValues() {
-        for (int col = 0; col < width(); col++) {
-            for (int row = 0; row < height(); row++) {
-                if (table[col][row] instanceof SCell sCell) {
-                    sCell.setEvaluatedValue(null);
-                }
+        long[] keys = new long[cone.size()];
+        int[] depths = new int[keys.length];
+        int n = 0;
+        for (long key : cone) {
+            SCell sCell = cells.get(key); // cleared cells are dirty too, but have nothing to evaluate
+            if (sCell != null) {
+                keys[n] = key;
+                depths[n] = memo.depth(DependencyGraph.col(key), DependencyGraph.row(key));
+                sCell.setOrder(depths[n++]);
             }
         }
+        evaluateCells(Arrays.copyOf(keys, n), Arrays.copyOf(depths, n));
+    }
+
+    // The cells whose value, type or order the last evaluation pass may have changed: what a copy of
+    // the values (see ConcurrentSheet) has to refresh. Empty if it found nothing to do.
+    Set<Long> lastPass() {
+        return lastPass;
+    }
+
+    private void resetEvaluatedValues() {
+        cells.forEachKey(key -> cells.get(key).setEvaluatedValue(null));
     }
 
-    private void evaluateCellsByDepth(int[][] depths) {
-        int maxDepth = findMaxDepth(depths);
-        for (int depth = 0; depth <= maxDepth; depth++) {
-            evaluateCellsAtDepth(depths, depth);
+    private void evaluateCells(long[] keys, int[] depths) {
+        if (evaluationPool != null && dataflow && keys.length >= parallelThreshold) {
+            new DataflowScheduler(keys, depths, graph,
+                    key -> evaluateCell(DependencyGraph.col(key), DependencyGraph.row(key)),
+                    parallelThreshold).run(evaluationPool);
+        } else {
+            evaluateInOrder(DepthSearch.sortByDepth(keys, depths));
         }
     }
 
-    private int findMaxDepth(int[][] depths) {
-        int maxDepth = 0;
-        for (int[] row : depths) {
-            for (int depth : row) {
-                if (depth > maxDepth) {
-                    maxDepth = depth;
-                }
+    private void evaluateInOrder(DepthSearch.Order order) {
+        for (int level = 0; level + 1 < order.levelStart.length; level++) {
+            int from = order.levelStart[level], to = order.levelStart[level + 1];
+            if (evaluationPool != null && to - from >= parallelThreshold) {
+                evaluationPool.invoke(new LevelTask(order.cells, from, to));
+            } else {
+                evaluateRange(order.cells, from, to);
             }
         }
-        return maxDepth;
     }
 
-    private void evaluateCellsAtDepth(int[][] depths, int targetDepth) {
-        for (int col = 0; col < width(); col++) {
-            for (int row = 0; row < height(); row++) {
-                if (depths[col][row] == targetDepth) {
-                    evaluateCell(col, row);
-                }
+    private void evaluateRange(long[] cells, int from, int to) {
+        for (int i = from; i < to; i++) {
+            evaluateCell(DependencyGraph.col(cells[i]), DependencyGraph.row(cells[i]));
+        }
+    }
+
+    // Evaluates cells[from..to) of a single depth level, splitting in halves down to the threshold.
+    @SuppressWarnings("serial") // a ForkJoinTask is Serializable, but this one is never serialized
+    private final class LevelTask extends RecursiveAction {
+        private final long[] cells;
+        private final int from, to;
+
+        LevelTask(long[] cells, int from, int to) {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= parallelThreshold) {
+                evaluateRange(cells, from, to);
+                return;
             }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LevelTask(cells, from, mid), new LevelTask(cells, mid, to));
         }
     }
 
     private void evaluateCell(int col, int row) {
-        if (!isIn(col, row)) return;
+        SCell sCell = isIn(col, row) ? cell(col, row) : null;
+        if (sCell == null) return;
 
-        SCell sCell = (SCell) table[col][row];
         String data = sCell.getData();
 
+        double before = sCell.getNumber();
         if (isEmptyData(data)) {
             handleEmptyCell(sCell);
-            return;
+        } else if (isFormula(data)) {
+            sCell.setEvaluating(true);
+            try {
+                handleFormula(sCell);
+            } finally {
+                sCell.setEvaluating(false);
+            }
+        } else {
+            handleNonFormulaCell(sCell, data);
         }
-
-        if (isFormula(data)) {
-            handleFormula(col, row, sCell, data);
-            return;
+        if (sCell.getVersion() == 0 || Double.compare(before, sCell.getNumber()) != 0) {
+            sCell.setVersion(FormulaCache.nextVersion());
         }
-
-        handleNonFormulaCell(sCell, data);
+        ranges.update(col, row, sCell.getNumber(), isError(sCell.getType()));
     }
 
     private boolean isEmptyData(String data) {
@@ -201,15 +570,14 @@ public class Ex2Sheet implements Sheet {
         cell.setEvaluatedValue("");
     }
 
-    private void handleFormula(int col, int row, SCell cell, String data) {
-        int depthResult = calculateDepth(col, row, new boolean[width()][height()]);
-
-        if (depthResult == Ex2Utils.ERR_CYCLE_FORM) {
+    // The cell's order was set by the depth pass that scheduled it, so no cycle check is repeated here.
+    private void handleFormula(SCell cell) {
+        if (cell.getOrder() == Ex2Utils.ERR_CYCLE_FORM) {
             markCellAsCyclic(cell);
             return;
         }
 
-        evaluateFormula(cell, data);
+        evaluateFormula(cell);
     }
 
     private void markCellAsCyclic(SCell cell) {
@@ -217,38 +585,65 @@ public class Ex2Sheet implements Sheet {
         cell.setEvaluatedValue(Ex2Utils.ERR_CYCLE);
     }
 
-    private void evaluateFormula(SCell cell, String formula) {
-        Double result = cell.computeForm(formula);
-        if (result != null) {
+    private void evaluateFormula(SCell cell) {
+        Formula formula = cell.getFormula();
+        double result = formula == null ? Double.NaN : formulaCache == null ? compute(formula) : cachedValue(formula);
+        if (!Double.isNaN(result)) {
             cell.setType(Ex2Utils.FORM);
-            cell.setEvaluatedValue(String.format("%.1f", result));
+            cell.setEvaluatedNumber(result);
         } else {
             cell.setType(Ex2Utils.ERR_FORM_FORMAT);
             cell.setEvaluatedValue(Ex2Utils.ERR_FORM);
         }
     }
 
-    private void handleNonFormulaCell(SCell cell, String data) {
-        if (isNumeric(data)) {
-            handleNumericCell(cell, data);
-        } else {
-            handleTextCell(cell, data);
+    private double compute(Formula formula) {
+        return compiler == null ? formula.eval(this) : compiler.eval(formula, this);
+    }
+
+    private double cachedValue(Formula formula) {
+        FormulaCache.Key key = new FormulaCache.Key(formula.canonical(), inputVersions(formula));
+        Double cached = formulaCache.get(key);
+        if (cached != null) {
+            return cached;
         }
+        double result = compute(formula);
+        formulaCache.put(key, result);
+        return result;
     }
 
-    private boolean isNumeric(String str) {
+    // The versions of the referenced cells, then of the columns of each range.
+    private long[] inputVersions(Formula formula) {
+        long[] references = formula.references();
+        int size = references.length;
+        for (Formula.Aggregate range : formula.aggregates()) {
+            size += range.toCol - range.fromCol + 1;
+        }
+        long[] versions = new long[size];
+        int n = 0;
+        for (long ref : references) {
+            SCell sCell = cell(DependencyGraph.col(ref), DependencyGraph.row(ref));
+            versions[n++] = sCell == null ? 0 : sCell.getVersion();
+        }
+        for (Formula.Aggregate range : formula.aggregates()) {
+            for (int col = range.fromCol; col <= range.toCol; col++) {
+                versions[n++] = ranges.version(col);
+            }
+        }
+        return versions;
+    }
+
+    private void handleNonFormulaCell(SCell cell, String data) {
         try {
-            Double.parseDouble(str);
-            return true;
+            handleNumericCell(cell, Double.parseDouble(data));
         } catch (NumberFormatException e) {
-            return false;
+            handleTextCell(cell, data);
         }
     }
 
-    private void handleNumericCell(SCell cell, String data) {
-        double value = Double.parseDouble(data);
+    private void handleNumericCell(SCell cell, double value) {
         cell.setType(Ex2Utils.NUMBER);
-        cell.setEvaluatedValue(String.format("%.1f", value));
+        cell.setEvaluatedNumber(value);
     }
 
     private void handleTextCell(SCell cell, String data) {
@@ -258,94 +653,62 @@ public class Ex2Sheet implements Sheet {
 
     @Override
     public int[][] depth() {
-        int[][] depths = new int[width()][height()];
-        boolean[][] visited = new boolean[width()][height()];
-
-        for (int col = 0; col < width(); col++) {
-            for (int row = 0; row < height(); row++) {
-                if (!visited[col][row]) {
-                    depths[col][row] = calculateDepth(col, row, new boolean[width()][height()]);
-                }
+        applyBatch();
+        DepthSearch.Grid memo = new DepthSearch.Grid(width(), height());
+        for (long key : cells.keys()) { // empty positions keep depth 0
+            int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+            if (memo.state(col, row) == DepthSearch.UNVISITED) {
+                DepthSearch.compute(col, row, formulas, memo);
             }
         }
-        return depths;
+        return memo.depths;
     }
 
-    private int calculateDepth(int col, int row, boolean[][] visited) {
-        if (!isValidCell(col, row)) {
-            return Ex2Utils.ERR_CYCLE_FORM;
-        }
+    // Memo sized by the dirty cone: cells outside it are DONE with the order stored by the last pass.
+    private final class ConeDepths implements DepthSearch.Memo {
+        final Set<Long> cone;
+        final Map<Long, Integer> depths = new HashMap<>();
+        final Set<Long> open = new HashSet<>();
 
-        String data = table[col][row].getData();
-        if (isEmptyData(data) || !isFormula(data)) {
-            return 0;
+        ConeDepths(Set<Long> cone) {
+            this.cone = cone;
         }
 
-        String content = data.substring(1).trim();
-        if (isScientificNotation(content)) {
-            return 0;
+        public byte state(int col, int row) {
+            long key = DependencyGraph.key(col, row);
+            if (!cone.contains(key) || depths.containsKey(key)) return DepthSearch.DONE;
+            return open.contains(key) ? DepthSearch.IN_PROGRESS : DepthSearch.UNVISITED;
         }
 
-        if (visited[col][row]) {
-            return isSelfNegating(content) ? 0 : Ex2Utils.ERR_CYCLE_FORM;
+        public int depth(int col, int row) {
+            Integer depth = depths.get(DependencyGraph.key(col, row));
+            return depth != null ? depth : get(col, row).getOrder();
         }
 
-        return calculateDependencyDepth(col, row, visited, content);
-    }
-
-    private boolean isValidCell(int col, int row) {
-        return isIn(col, row) && table[col][row] != null;
-    }
-
-    private boolean isScientificNotation(String content) {
-        return SCIENTIFIC_NOTATION_PATTERN.matcher(content).matches();
-    }
+        public void open(int col, int row) { open.add(DependencyGraph.key(col, row)); }
 
-    private boolean isSelfNegating(String content) {
-        return SELF_NEGATING_PATTERN.matcher(content).matches();
+        public void finish(int col, int row, int depth) {
+            long key = DependencyGraph.key(col, row);
+            open.remove(key);
+            depths.put(key, depth);
+        }
     }
 
-    private int calculateDependencyDepth(int col, int row, boolean[][] visited, String content) {
-        Matcher matcher = CELL_REFERENCE_PATTERN.matcher(content);
-        if (!matcher.find()) {
-            return 0;
+    // The sheet's formulas as seen by the depth search: edges come from the dependency graph.
+    private final DepthSearch.Formulas formulas = new DepthSearch.Formulas() {
+        public long[] references(int col, int row) {
+            return graph.depthPrecedents(col, row);
         }
 
-        visited[col][row] = true;
-        int maxDepth = 0;
-
-        try {
-            matcher.reset();
-            while (matcher.find()) {
-                int depth = processReference(matcher.group(), visited);
-                if (depth == Ex2Utils.ERR_CYCLE_FORM) {
-                    return Ex2Utils.ERR_CYCLE_FORM;
-                }
-                maxDepth = Math.max(maxDepth, depth);
-            }
-            return maxDepth + 1;
-        } finally {
-            visited[col][row] = false;
+        public boolean isIn(int col, int row) {
+            return Ex2Sheet.this.isIn(col, row);
         }
-    }
 
-    private int processReference(String reference, boolean[][] visited) {
-        try {
-            int[] coords = parseCellReference(reference);
-            if (!isValidCell(coords[0], coords[1])) {
-                return Ex2Utils.ERR_CYCLE_FORM;
-            }
-
-            String dependentData = table[coords[0]][coords[1]].getData();
-            if (isEmptyData(dependentData)) {
-                return 0;
-            }
-
-            return calculateDepth(coords[0], coords[1], visited);
-        } catch (Exception e) {
-            return Ex2Utils.ERR_CYCLE_FORM;
+        public boolean isSelfNegating(int col, int row) {
+            SCell sCell = cell(col, row);
+            return sCell != null && sCell.getFormula() != null && sCell.getFormula().isSelfNegating();
         }
-    }
+    };
 
     @Override
     public String eval(int x, int y) {
@@ -364,7 +727,7 @@ public class Ex2Sheet implements Sheet {
     private String getEvaluatedCellValue(int x, int y) {
         Cell cell = get(x, y);
         if (!(cell instanceof SCell sCell)) {
-            return null;
+            return cell.getData(); // an empty position: EmptyCell holds no data
         }
 
         String evaluatedValue = sCell.getEvaluatedValue();
@@ -374,129 +737,36 @@ public class Ex2Sheet implements Sheet {
 
     @Override
     public void save(String fileName) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            writeSheetDimensions(writer);
-            writeSheetContent(writer);
-        }
-    }
-
-    private void writeSheetDimensions(BufferedWriter writer) throws IOException {
-        writer.write(width() + "," + height() + "\n");
-    }
-
-    private void writeSheetContent(BufferedWriter writer) throws IOException {
-        for (int col = 0; col < width(); col++) {
-            writeRowContent(writer, col);
-        }
-    }
-
-    private void writeRowContent(BufferedWriter writer, int col) throws IOException {
-        for (int row = 0; row < height(); row++) {
-            writeCellContent(writer, col, row);
-            if (row < height() - 1) {
-                writer.write(",");
-            }
-        }
-        writer.write("\n");
-    }
-
-    private void writeCellContent(BufferedWriter writer, int col, int row) throws IOException {
-        Cell cell = table[col][row];
-        String data = formatCellData(cell);
-        writer.write(data);
-    }
-
-    private String formatCellData(Cell cell) {
-        String data = cell.getData();
-        if (isEmptyOrNull(data)) {
-            return "EMPTY";
-        }
-        return data.replace(",", "\\,").replace("\n", "\\n");
+        SheetFiles.save(this, cells.keys(), fileName);
     }
 
-    private boolean isEmptyOrNull(String data) {
-        return data == null || data.trim().isEmpty();
+    /**
+     * Saves this sheet in the binary format (see BinarySheetFile), with the evaluated values: load()
+     * reads it back without any text decoding, and MappedSheet.open() reads its cells without loading it.
+     */
+    public void saveBinary(String fileName) throws IOException {
+        eval();
+        BinarySheetFile.save(this, cells.keys(), fileName);
     }
 
+    /** Replaces the sheet by the file's; an attached SheetJournal is detached, as it no longer describes the sheet. */
     @Override
     public void load(String fileName) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            int[] dimensions = readDimensions(reader);
-            createNewTable(dimensions[0], dimensions[1]);
-            loadTableContent(reader, dimensions[0], dimensions[1]);
-            eval();
-        }
-    }
-
-    private int[] readDimensions(BufferedReader reader) throws IOException {
-        String[] dimensions = reader.readLine().split(",");
-        return new int[]{
-                Integer.parseInt(dimensions[0]),
-                Integer.parseInt(dimensions[1])
-        };
-    }
-
-    private void createNewTable(int width, int height) {
-        table = new SCell[width][height];
-    }
-
-    private void loadTableContent(BufferedReader reader, int width, int height) throws IOException {
-        for (int col = 0; col < width; col++) {
-            loadRowContent(reader, col, height);
-        }
-    }
-
-    private void loadRowContent(BufferedReader reader, int col, int height) throws IOException {
-        String[] rowData = reader.readLine().split("(?<!\\\\),");
-        for (int row = 0; row < height; row++) {
-            createCell(col, row, rowData[row]);
-        }
-    }
-
-    private void createCell(int col, int row, String data) {
-        String cellData = processCellData(data);
-        table[col][row] = new SCell(cellData, this, generateCellName(col, row));
-    }
-
-    private String processCellData(String data) {
-        String processed = data.replace("\\,", ",").replace("\\n", "\n");
-        return processed.equals("EMPTY") ? "" : processed;
-    }
-
-
-
-    private int[] returnXY(String cords) {
-        validateCoordinates(cords);
-        return parseCoordinates(cords.trim());
-    }
-
-    private void validateCoordinates(String cords) {
-        if (isEmptyOrNull(cords)) {
-            throw new IllegalArgumentException("Invalid coordinates: empty input");
-        }
-
-        if (!isValidCoordinateFormat(cords.trim())) {
-            throw new IllegalArgumentException("Invalid coordinates format: " + cords);
-        }
-    }
-
-    private boolean isValidCoordinateFormat(String cords) {
-        return cords.matches("[A-Za-z][0-9]+");
-    }
-
-    private int[] parseCoordinates(String cords) {
-        int colIndex = calculateColumnIndex(cords.charAt(0));
-        int rowIndex = Integer.parseInt(cords.substring(1));
-
-        if (!isIn(colIndex, rowIndex)) {
-            throw new IllegalArgumentException("Invalid coordinates: " + cords);
-        }
+        journal = null;
+        SheetFiles.load(fileName, new SheetFiles.Target() {
+            public void reset(int width, int height) {
+                initializeSheet(width, height);
+            }
 
-        return new int[]{colIndex, rowIndex};
+            public void put(int col, int row, String data) {
+                createCell(col, row, data);
+            }
+        });
+        eval();
     }
 
-    private int calculateColumnIndex(char colChar) {
-        return Character.toUpperCase(colChar) - 'A';
+    private void createCell(int col, int row, String cellData) {
+        cells.put(DependencyGraph.key(col, row), new SCell(cellData, this, col, row));
+        updateReferences(col, row);
     }
-}
-
+}
\ No newline at end of file
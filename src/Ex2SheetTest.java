@@ -1,7 +1,9 @@
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 public class Ex2SheetTest {
 
     @Test
@@ -198,4 +200,643 @@ public class Ex2SheetTest {
         assertEquals(0, result[1][1]);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testDependents() { // בודק שהתלויות מתעדכנות כשמשנים נוסחה
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "5");
+        sheet.set(1, 0, "=A0+A0*2");
+        sheet.set(2, 0, "=A0+B0");
+        assertEquals(2, sheet.dependents(0, 0).size());
+        assertEquals(1, sheet.precedents(1, 0).size());
+        sheet.set(1, 0, "=C1");
+        assertEquals(1, sheet.dependents(0, 0).size());
+        assertEquals(2, sheet.dependents(0, 0).get(0).getX());
+        assertEquals(1, sheet.dependents(2, 1).size());
+    }
+
+    @Test
+    public void testIncrementalEval() { // בודק שחישוב חלקי אחרי שינוי תא נותן את אותה תוצאה כמו חישוב מלא
+        Ex2Sheet sheet = new Ex2Sheet(4, 4);
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.set(0, 2, "=A1+A0");
+        sheet.set(1, 0, "=7");
+        sheet.eval();
+        assertEquals("8.0", sheet.value(0, 2));
+        sheet.set(0, 0, "5");
+        sheet.eval();
+        assertEquals("15.0", sheet.value(0, 1));
+        assertEquals("20.0", sheet.value(0, 2));
+        assertEquals("7.0", sheet.value(1, 0));
+        sheet.set(0, 0, "=A2");
+        sheet.eval();
+        assertEquals("ERR_CYCLE!", sheet.value(0, 2));
+        assertEquals(-1, sheet.get(0, 1).getOrder());
+        sheet.set(0, 0, "1");
+        assertEquals("4.0", sheet.value(0, 2)); // value() מחשב את התאים שהשתנו
+        assertEquals(2, sheet.get(0, 2).getOrder());
+    }
+
+    @Test
+    public void testFormulaPrecedence() { // בודק סדר פעולות בנוסחה המפוענחת
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "=8/4/2");
+        sheet.set(1, 0, "=2+3*4-1");
+        sheet.set(2, 0, "=-(2+3)*2");
+        sheet.set(0, 1, "= 1e2 / 4");
+        sheet.set(1, 1, "=2*-3");
+        sheet.eval();
+        assertEquals("1.0", sheet.value(0, 0));
+        assertEquals("13.0", sheet.value(1, 0));
+        assertEquals("-10.0", sheet.value(2, 0));
+        assertEquals("25.0", sheet.value(0, 1));
+        assertEquals("ERR_FORM!", sheet.value(1, 1));
+    }
+
+    @Test
+    public void testChainPrecision() { // בודק שאין עיגול מצטבר בשרשרת של הפניות
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "=10/3");
+        sheet.set(0, 1, "=A0*3");
+        sheet.set(0, 2, "=A0+A0");
+        sheet.eval();
+        assertEquals("3.3", sheet.value(0, 0));
+        assertEquals("10.0", sheet.value(0, 1));
+        assertEquals("6.7", sheet.value(0, 2));
+        assertEquals(10.0 / 3, ((SCell) sheet.get(0, 0)).getNumber(), Ex2Utils.EPS);
+    }
+
+    @Test
+    public void testParallelEval() { // בודק שחישוב מקבילי לפי רמות נותן את אותן תוצאות כמו חישוב סדרתי
+        Ex2Sheet sequential = new Ex2Sheet(10, 300);
+        Ex2Sheet parallel = new Ex2Sheet(10, 300);
+        parallel.setEvaluationPool(new ForkJoinPool(4));
+        parallel.setParallelThreshold(8);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{sequential, parallel}) {
+            for (int row = 0; row < 300; row++) {
+                sheet.set(0, row, "" + row);
+                for (int col = 1; col < 10; col++) {
+                    char prev = (char) ('A' + col - 1);
+                    sheet.set(col, row, "=" + prev + row + "*2+" + prev + ((row + 1) % 300));
+                }
+            }
+            sheet.eval();
+        }
+        for (int col = 0; col < 10; col++) {
+            for (int row = 0; row < 300; row++) {
+                assertEquals(sequential.value(col, row), parallel.value(col, row));
+            }
+        }
+    }
+
+    @Test
+    public void testDataflowEval() { // בודק שחישוב לפי זרימת תלויות (בלי מחסומים בין רמות) זהה לחישוב הסדרתי
+        Ex2Sheet sequential = new Ex2Sheet(4, 200);
+        Ex2Sheet dataflow = new Ex2Sheet(4, 200);
+        dataflow.setEvaluationPool(new ForkJoinPool(4));
+        dataflow.setParallelThreshold(4);
+        dataflow.setDataflowScheduling(true);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{sequential, dataflow}) {
+            sheet.set(0, 0, "1");
+            for (int row = 1; row < 200; row++) {
+                sheet.set(0, row, "=A" + (row - 1) + "+1"); // שרשרת ארוכה
+                sheet.set(1, row, "=A0*" + row); // מניפה רחבה
+                sheet.set(2, row, "=B" + row + "-A" + row);
+            }
+            sheet.set(3, 0, "=D1");
+            sheet.set(3, 1, "=D0");
+            sheet.eval();
+        }
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 200; row++) {
+                assertEquals(sequential.value(col, row), dataflow.value(col, row));
+            }
+        }
+        assertEquals("200.0", dataflow.value(0, 199));
+        assertEquals("ERR_CYCLE!", dataflow.value(3, 0));
+    }
+
+    @Test
+    public void testSparseSheet() { // בודק גיליון גדול עם מעט תאים - תאים ריקים לא נשמרים
+        Ex2Sheet sheet = new Ex2Sheet(26, 10_000_000);
+        sheet.set(0, 9_999_999, "4");
+        sheet.set(25, 0, "=A9999999*2");
+        sheet.eval();
+        assertEquals("8.0", sheet.value(25, 0));
+        assertEquals("", sheet.value(3, 5_000_000));
+        assertSame(sheet.get(1, 1), sheet.get(2, 2));
+        assertThrows(UnsupportedOperationException.class, () -> sheet.get(1, 1).setData("x"));
+        sheet.set(0, 9_999_999, "");
+        assertEquals("ERR_FORM!", sheet.value(25, 0));
+    }
+
+    @Test
+    public void testColumnarSheet() { // בודק שהגיליון העמודתי מחשב כמו Ex2Sheet
+        Ex2Sheet cells = new Ex2Sheet(5, 50);
+        ColumnarSheet columns = new ColumnarSheet(5, 50);
+        String[] data = {"3", "2.50", "hello", "=A0*2+A1", "=E3", "=A0/0", "=(A0", "=Z1", "=C0+1"};
+        for (Sheet sheet : new Sheet[]{cells, columns}) {
+            for (int row = 0; row < 50; row++) {
+                sheet.set(0, row, "" + row);
+                sheet.set(1, row, row == 0 ? "=A0" : "=B" + (row - 1) + "+A" + row); // סכום מצטבר
+                sheet.set(2, row, data[row % data.length]);
+            }
+            sheet.set(4, 3, "=D3"); // מעגל
+            sheet.set(3, 3, "=E3");
+            sheet.eval();
+        }
+        for (int col = 0; col < 5; col++) {
+            for (int row = 0; row < 50; row++) {
+                assertEquals(cells.value(col, row), columns.value(col, row));
+                assertEquals(cells.get(col, row).getData(), columns.get(col, row).getData());
+            }
+        }
+        assertEquals("1225.0", columns.value(1, 49));
+        assertEquals("2.50", columns.get(2, 1).getData());
+        columns.get(0, 0).setData("100");
+        assertEquals("1325.0", columns.value(1, 49));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, columns.get(3, 3).getType());
+    }
+
+    @Test
+    public void testCellName() { // בודק ששם התא נגזר מהמיקום שלו
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(1, 12, "5");
+        assertEquals("B12", sheet.get(1, 12).toString());
+        sheet.set(1, 12, "=B11+1");
+        assertEquals("B12", sheet.get("B12").toString());
+        assertEquals("I0", new ColumnarSheet().get(8, 0).toString());
+    }
+
+    @Test
+    public void testMultiLetterColumns() { // בודק עמודות עם כמה אותיות (AA, ZZ, AAA)
+        assertEquals("Z", CellReference.columnName(25));
+        assertEquals("AA", CellReference.columnName(26));
+        assertEquals("ZZZ", CellReference.columnName(18277));
+        assertEquals(DependencyGraph.key(27, 3), CellReference.parse(" ab3 "));
+        assertEquals(CellReference.INVALID, CellReference.parse("AAAA1"));
+        assertEquals(CellReference.INVALID, CellReference.parse("A1B"));
+        Ex2Sheet sheet = new Ex2Sheet(800, 3);
+        sheet.set(26, 0, "4");
+        sheet.set(701, 2, "=AA0*2");
+        sheet.set(702, 1, "=ZZ2+aa0");
+        assertEquals("12.0", sheet.value(702, 1));
+        assertEquals("AAA1", sheet.get("AAA1").toString());
+        assertNull(sheet.get("ZZZ1"));
+    }
+
+    @Test
+    public void testRangeFunctions() { // בודק פונקציות על טווחים: SUM, AVG, MIN, MAX
+        Ex2Sheet sheet = new Ex2Sheet(4, 100);
+        for (int row = 0; row < 100; row++) {
+            sheet.set(0, row, "" + (row + 1));
+        }
+        sheet.set(1, 0, "=SUM(A0:A99)");
+        sheet.set(1, 1, "=avg(A99:A0)"); // הפינות בכל סדר
+        sheet.set(1, 2, "=MIN(A10:A20)+MAX(A0:A4)");
+        sheet.set(1, 3, "=SUM(C0:C9)"); // טווח ריק
+        sheet.set(1, 4, "=MAX(C0:C9)");
+        sheet.set(1, 5, "=SUM(B4:B5)"); // מעגל דרך הטווח
+        sheet.set(1, 6, "=SUM(A0)*2");
+        sheet.eval();
+        assertEquals("5050.0", sheet.value(1, 0));
+        assertEquals("50.5", sheet.value(1, 1));
+        assertEquals("16.0", sheet.value(1, 2));
+        assertEquals("0.0", sheet.value(1, 3));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 4));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 5));
+        assertEquals("2.0", sheet.value(1, 6));
+        sheet.set(0, 50, "hello"); // טקסט בטווח לא נספר
+        sheet.set(2, 5, "7");
+        assertEquals("4999.0", sheet.value(1, 0));
+        assertEquals("7.0", sheet.value(1, 4));
+        assertNull(Formula.parse("=SUM(A1:)"));
+        assertNull(Formula.parse("=COUNT(A1:A2)"));
+    }
+
+    @Test
+    public void testRangeErrors() { // בודק ששגיאה בתוך טווח הופכת את הפונקציה לשגיאה, כמו הפניה רגילה
+        for (Sheet sheet : new Sheet[]{new Ex2Sheet(), new ColumnarSheet()}) {
+            sheet.set(0, 0, "=1/0");
+            sheet.set(0, 1, "5");
+            sheet.set(0, 2, "text"); // טקסט בטווח מדולג
+            sheet.set(1, 0, "=SUM(A0:A2)");
+            sheet.set(1, 1, "=AVG(A0:A2)");
+            sheet.set(1, 2, "=A0+A1");
+            sheet.set(1, 3, "=MAX(A1:A2)");
+            sheet.eval();
+            assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0));
+            assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 1));
+            assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 2));
+            assertEquals("5.0", sheet.value(1, 3));
+            sheet.set(0, 0, "1"); // השגיאה תוקנה
+            sheet.eval();
+            assertEquals("6.0", sheet.value(1, 0));
+            assertEquals("3.0", sheet.value(1, 1));
+        }
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(2, 0, "=C0-C0"); // שני תאי X-X שהם ERR_FORM
+        sheet.set(2, 1, "=C1-C1");
+        sheet.set(2, 2, "=SUM(C0:C1)");
+        sheet.set(2, 3, "=SUM(B0:B9)+SUM(C0:C1)");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(2, 2));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(2, 3));
+        Formula.Values values = (col, row) -> row == 0 ? 1 : Double.NaN; // בלי אינדקס טווחים
+        assertEquals(1.0, Formula.parse("=SUM(A0:A1)").eval(values), 0);
+        assertTrue(Double.isNaN(Formula.parse("=SUM(A0:A1)").eval(new Formula.Values() {
+            public double number(int col, int row) {
+                return row == 0 ? 1 : Double.NaN;
+            }
+
+            public boolean isError(int col, int row) {
+                return row == 1;
+            }
+        })));
+    }
+
+    @Test
+    public void testRangeDependencies() { // בודק שטווח גדול לא נפרס לתלות לכל תא
+        Ex2Sheet sheet = new Ex2Sheet(3, 1_000_000);
+        sheet.set(1, 0, "=SUM(A0:A999999)");
+        sheet.set(1, 1, "=MAX(A0:A999999)+B0");
+        sheet.set(0, 500_000, "5");
+        sheet.set(0, 999_999, "=A500000*2");
+        assertEquals("15.0", sheet.value(1, 0));
+        assertEquals("25.0", sheet.value(1, 1));
+        assertEquals(2, sheet.dependents(0, 123_456).size());
+        assertTrue(sheet.precedents(1, 0).isEmpty());
+        assertEquals(2, sheet.depth()[1][0]); // תלוי בנוסחה שבתוך הטווח
+        sheet.set(0, 500_000, "7"); // עדכון תא בתוך הטווח
+        assertEquals("21.0", sheet.value(1, 0));
+        sheet.set(0, 999_999, "=B0"); // מעגל דרך הטווח
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 1));
+    }
+
+    @Test
+    public void testFormulaCache() { // בודק שנוסחאות זהות על אותם קלטים מחושבות פעם אחת
+        assertEquals(Formula.parse("=a1 * 2").canonical(), Formula.parse("=(A1)*2.0").canonical());
+        Ex2Sheet sheet = new Ex2Sheet(3, 100);
+        FormulaCache cache = new FormulaCache(10);
+        sheet.setFormulaCache(cache);
+        for (int row = 0; row < 100; row++) {
+            sheet.set(0, row, "" + row);
+            sheet.set(1, row, "=SUM(A0:A99)/100");
+        }
+        sheet.eval();
+        assertEquals("49.5", sheet.value(1, 99));
+        assertEquals(1L, cache.misses());
+        assertEquals(99L, cache.hits());
+        sheet.set(0, 0, "100"); // שינוי קלט - התוצאה הישנה לא נמצאת יותר
+        assertEquals("50.5", sheet.value(1, 0));
+        assertEquals(2L, cache.misses());
+        assertEquals(198L, cache.hits());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testFormulaOptimizer() { // בודק קיפול קבועים, זהויות ושיתוף תתי-ביטויים
+        assertEquals("((5.0*A1)+(5.0*A2))", Formula.parse("=(2+3)*A1 + (2+3)*A2").canonical());
+        assertEquals("A1", Formula.parse("=1*(A1*1-0)/1").canonical());
+        assertEquals("(A1+0.0)", Formula.parse("=A1+0").canonical()); // -0+0 הוא 0, לכן לא מקפלים
+        assertFalse(Formula.parse("=(A1-A1)*1").isSelfNegating());
+
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "=(B1+B2)*(B1+B2)");
+        sheet.set(0, 1, "=(b1 + b2)/2");
+        Formula.Binary square = (Formula.Binary) ((SCell) sheet.get(0, 0)).getFormula();
+        Formula.Binary half = (Formula.Binary) ((SCell) sheet.get(0, 1)).getFormula();
+        assertSame(square.left, square.right);
+        assertSame(square.left, half.left);
+        sheet.set(1, 1, "3");
+        sheet.set(1, 2, "-1");
+        assertEquals("4.0", sheet.value(0, 0));
+        assertEquals("1.0", sheet.value(0, 1));
+    }
+
+    @Test
+    public void testFormulaCompiler() { // בודק שנוסחאות מהודרות מחושבות כמו במפרש
+        Ex2Sheet sheet = new Ex2Sheet();
+        FormulaCompiler compiler = new FormulaCompiler(1); // מהודרת בחישוב השני
+        sheet.setCompiler(compiler);
+        sheet.set(0, 0, "6");
+        sheet.set(0, 1, "0");
+        sheet.set(1, 0, "=-(A0*2+1)/(A0-4)");
+        sheet.set(1, 1, "=A0/A1");
+        sheet.set(1, 2, "=SUM(A0:A1)*MAX(A0:A1)");
+        sheet.eval();
+        assertEquals(0, compiler.compiledCount()); // עדיין מתחת לסף
+        sheet.set(0, 0, "5");
+        sheet.set(0, 0, "6"); // חישוב שני של כל נוסחה - מעל הסף
+        sheet.eval();
+        assertEquals(3, compiler.compiledCount());
+        assertEquals("-6.5", sheet.value(1, 0));
+        assertEquals("ERR_FORM!", sheet.value(1, 1)); // חלוקה באפס
+        assertEquals("36.0", sheet.value(1, 2));
+        sheet.set(0, 1, "3");
+        assertEquals("2.0", sheet.value(1, 1));
+        assertEquals("54.0", sheet.value(1, 2));
+    }
+
+    @Test
+    public void testBatchUpdates() { // בודק שאצווה של עדכונים מחושבת פעם אחת, בסופה
+        Ex2Sheet sheet = new Ex2Sheet(2, 1000);
+        FormulaCache cache = new FormulaCache(1); // סופר את חישובי הנוסחאות
+        sheet.setFormulaCache(cache);
+        sheet.beginBatch();
+        for (int row = 0; row < 1000; row++) {
+            sheet.set(0, row, "" + row);
+            sheet.set(1, row, row == 0 ? "=A0" : "=A" + row + "+B" + (row - 1));
+        }
+        sheet.beginBatch(); // אצווה פנימית מצטרפת לחיצונית
+        sheet.set(0, 0, "=B999"); // מעגל...
+        sheet.set(0, 0, "1000"); // ...שנשבר באותה אצווה
+        sheet.commitBatch();
+        assertEquals(0L, cache.hits() + cache.misses());
+        sheet.commitBatch();
+        assertEquals(1000L, cache.hits() + cache.misses());
+        assertEquals("500500.0", sheet.value(1, 999));
+        assertEquals(1, sheet.dependents(0, 0).size());
+        assertThrows(IllegalStateException.class, sheet::commitBatch);
+    }
+
+    @Test
+    public void testConcurrentSheet() throws InterruptedException { // בודק כותבים וקוראים במקביל על עמודות שונות
+        ConcurrentSheet sheet = new ConcurrentSheet(8, 100, 2);
+        sheet.set(0, 0, "1");
+        assertEquals("", sheet.value(0, 0)); // נראה לקוראים רק אחרי eval()
+        sheet.eval();
+        assertEquals("1.0", sheet.value(0, 0));
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            int col = w * 2; // כל כותב בפס אחר
+            writers[w] = new Thread(() -> {
+                for (int row = 0; row < 100; row++) {
+                    sheet.set(col, row, "" + row);
+                    sheet.value(7 - col, row); // קורא מפס של כותב אחר
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        sheet.set(7, 0, "=SUM(A0:A99)+G99");
+        sheet.eval();
+        assertEquals("5049.0", sheet.value(7, 0));
+        assertEquals(1, sheet.depth()[7][0]);
+        sheet.set(0, 99, "");
+        sheet.eval();
+        assertEquals("4950.0", sheet.value(7, 0));
+        assertEquals("", sheet.get(0, 99).getData());
+        assertThrows(UnsupportedOperationException.class, () -> sheet.get(7, 0).setData("2"));
+    }
+
+    @Test
+    public void testSnapshots() throws InterruptedException { // בודק שקוראים רואים תמיד חישוב שלם
+        Ex2Sheet sheet = new Ex2Sheet(3, 200);
+        assertThrows(IllegalStateException.class, sheet::snapshot);
+        sheet.set(0, 0, "0");
+        sheet.set(1, 0, "=A0*2");
+        sheet.setSnapshots(true);
+        SheetSnapshot first = sheet.snapshot();
+        assertEquals("0.0", first.value(1, 0));
+        boolean[] torn = new boolean[1];
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                SheetSnapshot view = sheet.snapshot();
+                double a = Double.parseDouble(view.value(0, 0)), b = Double.parseDouble(view.value(1, 0));
+                torn[0] |= b != 2 * a;
+            }
+        });
+        reader.start();
+        for (int n = 1; n <= 1000; n++) {
+            sheet.set(0, 0, "" + n);
+            sheet.eval();
+        }
+        reader.join();
+        assertFalse(torn[0]);
+        assertEquals("0.0", first.value(1, 0)); // תמונה ישנה לא משתנה
+        assertEquals("2000.0", sheet.snapshot().value(1, 0));
+        long version = sheet.snapshot().version();
+        sheet.set(1, 0, "");
+        sheet.eval();
+        assertEquals(version + 1, sheet.snapshot().version());
+        assertSame(EmptyCell.INSTANCE, sheet.snapshot().get(1, 0));
+    }
+
+    @Test
+    public void testLoadEscapes() throws IOException { // בודק טעינה של תווים מוברחים ושורות Windows
+        String tempFile = "test_escapes_sheet.csv";
+        try (FileWriter writer = new FileWriter(tempFile)) {
+            writer.write("2,3\r\n");
+            writer.write("a\\,b,EMPTY,=1+2,x\r\n"); // תא רביעי - מעבר לגובה
+            writer.write("line\\none,,c:\\x\n");
+        }
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.load(tempFile);
+        assertEquals(2, sheet.width());
+        assertEquals(3, sheet.height());
+        assertEquals("a,b", sheet.value(0, 0));
+        assertEquals("", sheet.value(0, 1));
+        assertEquals("3.0", sheet.value(0, 2));
+        assertEquals("line\none", sheet.value(1, 0));
+        assertEquals("", sheet.value(1, 1));
+        assertEquals("c:\\x", sheet.value(1, 2));
+        //noinspection ResultOfMethodCallIgnored
+        new File(tempFile).delete();
+    }
+
+    @Test
+    public void testSparseFile() throws IOException { // בודק את פורמט הקובץ הדליל שבממשק Sheet
+        String tempFile = "test_sparse_sheet.csv";
+        Ex2Sheet sheet = new Ex2Sheet(30, 2000);
+        sheet.set(0, 0, "5");
+        sheet.set(1, 0, "=A0+2");
+        sheet.set(2, 1999, "a,b\nc");
+        sheet.save(tempFile);
+        assertTrue(new File(tempFile).length() < 200); // רק התאים המלאים נשמרים
+        Ex2Sheet loaded = new Ex2Sheet();
+        loaded.load(tempFile);
+        assertEquals(30, loaded.width());
+        assertEquals(2000, loaded.height());
+        assertEquals("7.0", loaded.value(1, 0));
+        assertEquals("a,b\nc", loaded.value(2, 1999));
+
+        try (FileWriter writer = new FileWriter(tempFile)) { // הדוגמה מהתיעוד, בלי מידות
+            writer.write("I2CS ArielU: SpreadSheet (Ex2) assignment - this line should be ignored in the load method\n");
+            writer.write("0,0,1\n0,1,=2+a0\n0,2,=a1*1.4,remark\n0,3,a string without a comma\n");
+            writer.write("11=3, this line should be ignored as it is in the wrong format\n");
+            writer.write("1,2,3, this cell should be loaded to the table.\n");
+        }
+        loaded.load(tempFile);
+        assertEquals(Ex2Utils.WIDTH, loaded.width());
+        assertEquals(Ex2Utils.HEIGHT, loaded.height());
+        assertEquals("4.2", loaded.value(0, 2));
+        assertEquals("a string without a comma", loaded.value(0, 3));
+        assertEquals("3.0", loaded.value(1, 2));
+        assertEquals("", loaded.value(1, 1));
+        //noinspection ResultOfMethodCallIgnored
+        new File(tempFile).delete();
+    }
+
+    @Test
+    public void testBinaryFile() throws IOException { // בודק שמירה בפורמט בינארי וקריאה ממופה
+        String tempFile = "test_binary_sheet.bin";
+        Ex2Sheet sheet = new Ex2Sheet(30, 2000);
+        sheet.set(0, 0, "5");
+        sheet.set(1, 0, "=A0+2");
+        sheet.set(2, 1999, "a,b\nשלום");
+        sheet.set(3, 3, "=D3");
+        sheet.saveBinary(tempFile);
+        MappedSheet mapped = MappedSheet.open(tempFile);
+        assertEquals(30, mapped.width());
+        assertEquals("7.0", mapped.value(1, 0));
+        assertEquals("=A0+2", mapped.get(1, 0).getData());
+        assertEquals("a,b\nשלום", mapped.value(2, 1999));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, mapped.get(3, 3).getType());
+        assertEquals(Ex2Utils.FORM, mapped.get(1, 0).getType());
+        assertEquals(1, mapped.get(1, 0).getOrder());
+        assertSame(EmptyCell.INSTANCE, mapped.get(5, 5));
+        assertArrayEquals(sheet.depth(), mapped.depth());
+        Ex2Sheet loaded = new Ex2Sheet();
+        loaded.load(tempFile); // הפורמט מזוהה לבד
+        assertEquals(2000, loaded.height());
+        assertEquals("7.0", loaded.value(1, 0));
+        assertEquals("a,b\nשלום", loaded.value(2, 1999));
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(tempFile, "rw")) {
+            file.seek(16);
+            file.writeInt(0x0AAAAAAB); // מספר תאים שהכפלתו בגודל הרשומה גולשת ב-int למספר קטן
+        }
+        assertThrows(IOException.class, () -> MappedSheet.open(tempFile));
+        sheet.saveBinary(tempFile);
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(tempFile, "rw")) {
+            file.seek(24 + 3 * 24); // המפתח של הרשומה האחרונה (D3)
+            file.writeLong(DependencyGraph.key(500, 0)); // תא מחוץ לגיליון
+        }
+        assertThrows(IOException.class, () -> MappedSheet.open(tempFile));
+        assertThrows(IOException.class, () -> new Ex2Sheet().load(tempFile));
+        sheet.saveBinary(tempFile);
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(tempFile, "rw")) {
+            file.seek(24 + 8); // אינדקס המחרוזת של התוכן של הרשומה הראשונה
+            file.writeInt(9999);
+        }
+        assertThrows(IOException.class, () -> MappedSheet.open(tempFile));
+        sheet.saveBinary(tempFile);
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(tempFile, "rw")) {
+            file.seek(24 + 4 * 24 + 4); // ההיסט של המחרוזת השנייה
+            file.writeInt(-5);
+        }
+        assertThrows(IOException.class, () -> MappedSheet.open(tempFile));
+        //noinspection ResultOfMethodCallIgnored
+        new File(tempFile).delete();
+    }
+
+    @Test
+    public void testJournal() throws Exception { // בודק שחזור מיומן שינויים ודחיסה שלו לקובץ
+        File dir = java.nio.file.Files.createTempDirectory("journal").toFile();
+        String fileName = new File(dir, "sheet.txt").getPath();
+        Ex2Sheet sheet = new Ex2Sheet();
+        SheetJournal journal = SheetJournal.open(sheet, fileName);
+        sheet.set(0, 0, "5");
+        sheet.set(1, 0, "=A0+2");
+        sheet.set(2, 2, "x");
+        sheet.set(2, 2, "");
+        journal.commit();
+        try (FileWriter torn = new FileWriter(new File(dir, "sheet.txt.journal.1"), true)) {
+            torn.write("\0\0"); // רשומה חתוכה מנפילה באמצע כתיבה
+        }
+        try (FileWriter stale = new FileWriter(new File(dir, "sheet.txt.4242.tmp"))) {
+            stale.write("1,1,x\n"); // קובץ זמני שנשאר מנפילה באמצע שמירה
+        }
+
+        Ex2Sheet recovered = new Ex2Sheet(); // בלי close() - כמו אחרי נפילה
+        SheetJournal again = SheetJournal.open(recovered, fileName);
+        assertEquals("7.0", recovered.value(1, 0));
+        assertEquals("", recovered.value(2, 2));
+        again.setCompactionThreshold(2);
+        recovered.set(0, 0, "10");
+        recovered.set(3, 0, "=B0*2");
+        recovered.set(4, 0, "שלום, עולם"); // טקסט שאינו ASCII עובר דרך הדחיסה
+        again.commit(); // מעל הסף - נדחס ברקע
+        again.close();
+        assertArrayEquals(new String[]{"sheet.txt"}, dir.list());
+
+        Ex2Sheet loaded = new Ex2Sheet();
+        loaded.load(fileName);
+        assertEquals("24.0", loaded.value(3, 0));
+        assertEquals("שלום, עולם", loaded.value(4, 0));
+        //noinspection ResultOfMethodCallIgnored
+        new File(fileName).delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void testSetDataInPlace() { // בודק ששינוי תוכן של תא דרך setData מחשב מחדש את התאים שתלויים בו
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "1");
+        sheet.set(1, 0, "=A0*2");
+        sheet.eval();
+        sheet.get(0, 0).setData("5");
+        assertEquals("5.0", sheet.value(0, 0));
+        assertEquals("10.0", sheet.value(1, 0));
+        sheet.get(0, 0).setData("");
+        assertSame(EmptyCell.INSTANCE, sheet.get(0, 0));
+    }
+
+    @Test
+    public void testSelfNegatingCycle() { // בודק ש-X-X בתוך מעגל לא מחשב את אותו תא שוב ושוב (בלי StackOverflowError)
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "=B0-B0");
+        sheet.set(1, 0, "=A0");
+        sheet.eval();
+        int[][] depths = sheet.depth();
+        assertEquals(2, depths[0][0]);
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, depths[1][0]);
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 0));
+
+        sheet.set(0, 0, "=A0-A0"); // התא מפנה לעצמו - לא מחושב שוב מתוך החישוב שלו
+        sheet.set(1, 0, "=A0+1");
+        sheet.eval();
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 0));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0));
+    }
+
+    @Test
+    public void testEvalEmptyCell() { // בודק שחישוב תא ריק בתוך הגיליון מחזיר מחרוזת ריקה ולא null
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "=1+2");
+        assertEquals("3.0", sheet.eval(0, 0));
+        assertEquals(Ex2Utils.EMPTY_CELL, sheet.eval(3, 3));
+        assertNull(sheet.eval(-1, 0));
+        ColumnarSheet columnar = new ColumnarSheet(9, 17);
+        assertEquals(Ex2Utils.EMPTY_CELL, columnar.eval(3, 3));
+    }
+
+    @Test
+    public void testSavePermissions() throws IOException { // בודק שהשמירה האטומית לא משנה את ההרשאות של הקובץ
+        File dir = java.nio.file.Files.createTempDirectory("permissions").toFile();
+        File plain = new File(dir, "plain.txt"), saved = new File(dir, "sheet.txt");
+        new FileWriter(plain).close(); // קובץ חדש בהרשאות ברירת המחדל
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "5");
+        sheet.save(saved.getPath());
+        if (java.nio.file.FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(java.nio.file.Files.getPosixFilePermissions(plain.toPath()),
+                    java.nio.file.Files.getPosixFilePermissions(saved.toPath()));
+            java.nio.file.Files.setPosixFilePermissions(saved.toPath(),
+                    java.nio.file.attribute.PosixFilePermissions.fromString("rw-rw----"));
+            sheet.saveBinary(saved.getPath());
+            assertEquals("rw-rw----", java.nio.file.attribute.PosixFilePermissions.toString(
+                    java.nio.file.Files.getPosixFilePermissions(saved.toPath())));
+        }
+        //noinspection ResultOfMethodCallIgnored
+        plain.delete();
+        //noinspection ResultOfMethodCallIgnored
+        saved.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+}
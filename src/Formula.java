@@ -0,0 +1,502 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable, parsed form of a cell formula (e.g., "=A1*(3-A2)" or "=SUM(A1:C10)/2").
+ * A formula is parsed once (see parse(String)) into a tree of numbers, cell references, aggregate
+ * functions over ranges and + - * / operations, which can then be evaluated any number of times
+ * without touching its text.
+ * Parsing also optimizes the tree: constant subexpressions are folded, exact identities (x*1, x/1,
+ * x-0, -(-x)) are removed and identical subtrees are shared (see Subtrees), so eval() does only the
+ * work that depends on cells.
+ * An evaluation result of NaN means the formula could not be computed (ERR_FORM).
+ */
+public abstract class Formula {
+
+    /** The numeric values of the referenced cells, NaN for a cell that does not hold a number. */
+    public interface Values {
+        double number(int col, int row);
+
+        /**
+         * True iff the cell holds an error (ERR_FORM or a cycle) rather than a number, text or nothing.
+         * This default knows of no errors.
+         */
+        default boolean isError(int col, int row) {
+            return false;
+        }
+
+        /**
+         * The function over the numbers in the rectangle fromCol,fromRow .. toCol,toRow (inclusive).
+         * Text and empty cells are skipped, but a cell holding an error makes the result NaN, as a
+         * reference to it would. This default rescans the range; a sheet keeping a RangeIndex answers
+         * without it.
+         */
+        default double aggregate(Function function, int fromCol, int fromRow, int toCol, int toRow) {
+            double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            int count = 0;
+            for (int col = fromCol; col <= toCol; col++) {
+                for (int row = fromRow; row <= toRow; row++) {
+                    double number = number(col, row);
+                    if (isError(col, row)) return Double.NaN;
+                    if (!Double.isNaN(number)) {
+                        sum += number;
+                        count++;
+                        min = Math.min(min, number);
+                        max = Math.max(max, number);
+                    }
+                }
+            }
+            return function.result(sum, count, min, max);
+        }
+    }
+
+    /** The aggregate functions that can be applied to a range, e.g. "=AVG(B0:B9)". */
+    public enum Function {
+        SUM, AVG, MIN, MAX;
+
+        /** The function's value given the sum, count, min and max of the numbers in a range. */
+        double result(double sum, int count, double min, double max) {
+            if (this == SUM) return sum;
+            if (count == 0) return Double.NaN; // the average, minimum or maximum of no numbers
+            return switch (this) {
+                case AVG -> sum / count;
+                case MIN -> min;
+                default -> max;
+            };
+        }
+
+        // The function whose name is text[start..end), ignoring case, or null.
+        static Function named(String text, int start, int end) {
+            for (Function function : values()) {
+                String name = function.name();
+                if (end - start == name.length() && text.regionMatches(true, start, name, 0, name.length())) {
+                    return function;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final long[] NO_REFERENCES = new long[0];
+    private long[] references;
+    private List<Aggregate> aggregates;
+    private String canonical;
+
+    // Execution statistics of this (possibly shared) tree, kept for FormulaCompiler; not part of its value.
+    int evaluations;
+    volatile FormulaCompiler.Compiled compiled;
+
+    public abstract double eval(Values values);
+
+    abstract void collectReferences(List<Long> out);
+
+    abstract void appendCanonical(StringBuilder out);
+
+    // The optimized equivalent of this tree, built from nodes shared through the table.
+    abstract Formula optimize(Subtrees shared);
+
+    /**
+     * Identical subtrees (by canonical form) of the formulas parsed with the same table are one object,
+     * so a sheet repeating a subexpression keeps it once. Entries go away with the formulas using them.
+     */
+    static final class Subtrees {
+        private final Map<String, WeakReference<Formula>> nodes = new WeakHashMap<>();
+
+        Formula intern(Formula node) {
+            String form = node.canonical();
+            WeakReference<Formula> ref = nodes.get(form);
+            Formula shared = ref == null ? null : ref.get();
+            if (shared != null) return shared;
+            nodes.put(form, new WeakReference<>(node));
+            return node;
+        }
+    }
+
+    /**
+     * @return the normal form of this formula's text: no white spaces, upper case cell names, numbers
+     * as Double.toString() and every operation in parentheses - so "=a1 * 2" and "=(A1)*2.0" are equal.
+     */
+    public String canonical() {
+        if (canonical == null) {
+            StringBuilder out = new StringBuilder();
+            appendCanonical(out);
+            canonical = out.toString();
+        }
+        return canonical;
+    }
+
+    void collectAggregates(List<Aggregate> out) {
+    }
+
+    /**
+     * @return the aggregate functions in this formula, whose ranges a sheet may want to index.
+     */
+    List<Aggregate> aggregates() {
+        if (aggregates == null) {
+            List<Aggregate> out = new ArrayList<>();
+            collectAggregates(out);
+            aggregates = out.isEmpty() ? List.of() : List.copyOf(out);
+        }
+        return aggregates;
+    }
+
+    /**
+     * @return the packed (see DependencyGraph.key) cells referenced by this formula, in order of appearance.
+     * The cells of aggregate ranges are not included, see aggregates().
+     */
+    public long[] references() {
+        if (references == null) {
+            List<Long> out = new ArrayList<>();
+            collectReferences(out);
+            long[] keys = out.isEmpty() ? NO_REFERENCES : new long[out.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = out.get(i);
+            }
+            references = keys;
+        }
+        return references;
+    }
+
+    /**
+     * @return true iff this formula has the form "X-X" for a single cell reference X.
+     */
+    public boolean isSelfNegating() {
+        return this instanceof Binary b && b.op == '-'
+                && b.left instanceof Reference l && b.right instanceof Reference r
+                && l.col == r.col && l.row == r.row;
+    }
+
+    /**
+     * Parses a formula, with or without its leading '='. White spaces are ignored.
+     * @return the parsed formula, or null if the text is not a legal formula.
+     */
+    public static Formula parse(String text) {
+        return parse(text, new Subtrees());
+    }
+
+    /**
+     * Like parse(String), sharing subtrees with the other formulas parsed with the same table.
+     */
+    static Formula parse(String text, Subtrees shared) {
+        if (text == null) return null;
+        String form = text.startsWith("=") ? text.substring(1) : text;
+        Parser parser = new Parser(stripSpaces(form));
+        Formula ans = parser.expression();
+        if (ans == null || !parser.atEnd()) return null;
+        Formula optimized = ans.optimize(shared);
+        // X-X has its own depth rule, so a formula which only simplifies to that form is kept as written.
+        return optimized.isSelfNegating() && !ans.isSelfNegating() ? ans : optimized;
+    }
+
+    private static String stripSpaces(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c)) sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // Recursive descent: expr := [+|-] term ((+|-) term)*, term := factor ((*|/) factor)*,
+    // factor := number | cell | function '(' cell [':' cell] ')' | '(' expr ')'.
+    private static final class Parser {
+        private final String s;
+        private int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        boolean atEnd() {
+            return pos == s.length();
+        }
+
+        private char peek() {
+            return pos < s.length() ? s.charAt(pos) : 0;
+        }
+
+        Formula expression() {
+            char sign = peek();
+            if (sign == '+' || sign == '-') pos++;
+            Formula ans = term();
+            if (ans == null) return null;
+            if (sign == '-') ans = new Negate(ans);
+            while (peek() == '+' || peek() == '-') {
+                char op = s.charAt(pos++);
+                Formula right = term();
+                if (right == null) return null;
+                ans = new Binary(op, ans, right);
+            }
+            return ans;
+        }
+
+        private Formula term() {
+            Formula ans = factor();
+            if (ans == null) return null;
+            while (peek() == '*' || peek() == '/') {
+                char op = s.charAt(pos++);
+                Formula right = factor();
+                if (right == null) return null;
+                ans = new Binary(op, ans, right);
+            }
+            return ans;
+        }
+
+        private Formula factor() {
+            char c = peek();
+            if (c == '(') {
+                pos++;
+                Formula inner = expression();
+                if (inner == null || peek() != ')') return null;
+                pos++;
+                return inner;
+            }
+            if (CellReference.letter(c) > 0) return referenceOrFunction();
+            if (isDigit(c) || c == '.') return number();
+            return null;
+        }
+
+        private Formula referenceOrFunction() {
+            int start = pos;
+            while (CellReference.letter(peek()) > 0) pos++;
+            if (peek() == '(') {
+                Function function = Function.named(s, start, pos++);
+                return function == null ? null : aggregate(function);
+            }
+            pos = start;
+            long cell = cell();
+            if (cell == CellReference.INVALID) return null;
+            return new Reference(DependencyGraph.col(cell), DependencyGraph.row(cell));
+        }
+
+        // The arguments of a function, after its '(': a range "A1:B5", or a single cell.
+        private Formula aggregate(Function function) {
+            long from = cell();
+            if (from == CellReference.INVALID) return null;
+            long to = from;
+            if (peek() == ':') {
+                pos++;
+                to = cell();
+                if (to == CellReference.INVALID) return null;
+            }
+            if (peek() != ')') return null;
+            pos++;
+            return new Aggregate(function, from, to);
+        }
+
+        // Scans a cell name (see CellReference) to its packed col,row.
+        private long cell() {
+            int col = 0, letters = pos;
+            while (CellReference.letter(peek()) > 0) {
+                if (pos - letters == CellReference.MAX_LETTERS) return CellReference.INVALID;
+                col = col * 26 + CellReference.letter(s.charAt(pos++));
+            }
+            int start = pos;
+            while (isDigit(peek())) pos++;
+            if (pos == letters || pos == start || pos - start > CellReference.MAX_DIGITS) return CellReference.INVALID;
+            return DependencyGraph.key(col - 1, Integer.parseInt(s, start, pos, 10));
+        }
+
+        private Formula number() {
+            int start = pos;
+            while (isDigit(peek()) || peek() == '.') pos++;
+            if (peek() == 'e' || peek() == 'E') {
+                int mark = pos++;
+                if (peek() == '+' || peek() == '-') pos++;
+                if (!isDigit(peek())) {
+                    pos = mark;
+                } else {
+                    while (isDigit(peek())) pos++;
+                }
+            }
+            try {
+                return new Constant(Double.parseDouble(s.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+
+    static final class Constant extends Formula {
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        public double eval(Values values) {
+            return value;
+        }
+
+        void collectReferences(List<Long> out) {
+        }
+
+        void appendCanonical(StringBuilder out) {
+            out.append(value);
+        }
+
+        Formula optimize(Subtrees shared) {
+            return shared.intern(this);
+        }
+
+        boolean is(double constant) {
+            return Double.compare(value, constant) == 0;
+        }
+    }
+
+    static final class Reference extends Formula {
+        final int col, row;
+
+        Reference(int col, int row) {
+            this.col = col;
+            this.row = row;
+        }
+
+        public double eval(Values values) {
+            return values.number(col, row);
+        }
+
+        void collectReferences(List<Long> out) {
+            out.add(DependencyGraph.key(col, row));
+        }
+
+        void appendCanonical(StringBuilder out) {
+            out.append(CellReference.name(col, row));
+        }
+
+        Formula optimize(Subtrees shared) {
+            return shared.intern(this);
+        }
+    }
+
+    static final class Negate extends Formula {
+        final Formula operand;
+
+        Negate(Formula operand) {
+            this.operand = operand;
+        }
+
+        public double eval(Values values) {
+            return -operand.eval(values);
+        }
+
+        void collectReferences(List<Long> out) {
+            operand.collectReferences(out);
+        }
+
+        void collectAggregates(List<Aggregate> out) {
+            operand.collectAggregates(out);
+        }
+
+        void appendCanonical(StringBuilder out) {
+            out.append("-(");
+            operand.appendCanonical(out);
+            out.append(')');
+        }
+
+        Formula optimize(Subtrees shared) {
+            Formula inner = operand.optimize(shared);
+            if (inner instanceof Constant c) return shared.intern(new Constant(-c.value));
+            if (inner instanceof Negate n) return n.operand;
+            return shared.intern(inner == operand ? this : new Negate(inner));
+        }
+    }
+
+    static final class Binary extends Formula {
+        final char op;
+        final Formula left, right;
+
+        Binary(char op, Formula left, Formula right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public double eval(Values values) {
+            double l = left.eval(values);
+            if (Double.isNaN(l)) return Double.NaN;
+            double r = right == left ? l : right.eval(values); // a shared subtree is computed once
+            if (Double.isNaN(r)) return Double.NaN;
+            return switch (op) {
+                case '+' -> l + r;
+                case '-' -> l - r;
+                case '*' -> l * r;
+                case '/' -> r != 0 ? l / r : Double.NaN; // division by zero is an error
+                default -> Double.NaN;
+            };
+        }
+
+        void collectReferences(List<Long> out) {
+            left.collectReferences(out);
+            right.collectReferences(out);
+        }
+
+        void collectAggregates(List<Aggregate> out) {
+            left.collectAggregates(out);
+            right.collectAggregates(out);
+        }
+
+        void appendCanonical(StringBuilder out) {
+            out.append('(');
+            left.appendCanonical(out);
+            out.append(op);
+            right.appendCanonical(out);
+            out.append(')');
+        }
+
+        // x+0 is not removed: it turns -0 into 0, so in floating point it is not an identity.
+        Formula optimize(Subtrees shared) {
+            Formula l = left.optimize(shared), r = right.optimize(shared);
+            if (l instanceof Constant && r instanceof Constant) {
+                return shared.intern(new Constant(new Binary(op, l, r).eval(null)));
+            }
+            if (r instanceof Constant c && ((op == '*' || op == '/') && c.is(1) || op == '-' && c.is(0))) return l;
+            if (l instanceof Constant c && op == '*' && c.is(1)) return r;
+            return shared.intern(l == left && r == right ? this : new Binary(op, l, r));
+        }
+    }
+
+    // A function over a range of cells; the corners are kept as top-left and bottom-right.
+    static final class Aggregate extends Formula {
+        final Function function;
+        final int fromCol, fromRow, toCol, toRow;
+
+        Aggregate(Function function, long corner, long otherCorner) {
+            this.function = function;
+            int col1 = DependencyGraph.col(corner), col2 = DependencyGraph.col(otherCorner);
+            int row1 = DependencyGraph.row(corner), row2 = DependencyGraph.row(otherCorner);
+            fromCol = Math.min(col1, col2);
+            toCol = Math.max(col1, col2);
+            fromRow = Math.min(row1, row2);
+            toRow = Math.max(row1, row2);
+        }
+
+        public double eval(Values values) {
+            return values.aggregate(function, fromCol, fromRow, toCol, toRow);
+        }
+
+        // A range is not expanded into references: sheets track it as a whole (see aggregates()).
+        void collectReferences(List<Long> out) {
+        }
+
+        void collectAggregates(List<Aggregate> out) {
+            out.add(this);
+        }
+
+        void appendCanonical(StringBuilder out) {
+            out.append(function).append('(').append(CellReference.name(fromCol, fromRow))
+                    .append(':').append(CellReference.name(toCol, toRow)).append(')');
+        }
+
+        Formula optimize(Subtrees shared) {
+            return shared.intern(this);
+        }
+    }
+}
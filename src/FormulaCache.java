@@ -0,0 +1,100 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of formula results, for sheets that repeat the same formulas over the same inputs
+ * (see Ex2Sheet.setFormulaCache). A result is keyed by the formula's canonical form (see
+ * Formula.canonical) and the versions of everything it reads: every referenced cell, and every column
+ * of its ranges. Versions are never reused, so an entry can only be found again while all of its
+ * inputs still hold the values it was computed from - nothing has to be invalidated, stale entries
+ * simply age out. When the cache is full, the least recently used entry is evicted.
+ *
+ * A cache may be shared by several sheets, and used by parallel evaluation threads.
+ */
+public class FormulaCache {
+    private static final AtomicLong VERSIONS = new AtomicLong(); // shared by all sheets, so no two inputs ever get the same version
+
+    private final Map<Key, Double> entries;
+    private long hits, misses;
+
+    /**
+     * @param capacity the maximal number of results kept.
+     */
+    public FormulaCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached result, or null (counted as a miss) if there is none.
+     */
+    synchronized Double get(Key key) {
+        Double result = entries.get(key);
+        if (result != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    synchronized void put(Key key, double result) {
+        entries.put(key, result);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** A version not given to anything before (0 is left for cells that never held data). */
+    static long nextVersion() {
+        return VERSIONS.incrementAndGet();
+    }
+
+    /** Drops all entries and resets the counters. */
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /** A formula's canonical form with the versions of its inputs, in the order the formula lists them. */
+    static final class Key {
+        private final String form;
+        private final long[] versions;
+        private final int hash;
+
+        Key(String form, long[] versions) {
+            this.form = form;
+            this.versions = versions;
+            this.hash = 31 * form.hashCode() + Arrays.hashCode(versions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key k && hash == k.hash && form.equals(k.form) && Arrays.equals(versions, k.versions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles hot formulas to JVM bytecode (see Ex2Sheet.setCompiler).
+ * Every formula is interpreted (Formula.eval) until it has been evaluated more than threshold times;
+ * it is then turned into straight-line code - one method reading its cells through Formula.Values -
+ * and defined as a hidden class, which the JIT can then inline and optimize like any other code.
+ * A formula that cannot be compiled keeps being interpreted. Formulas shared between cells (see
+ * Formula.Subtrees) are counted and compiled once.
+ *
+ * The class files are written directly (version 49, which needs no stack map frames), since this JDK
+ * has no class-file API.
+ */
+public class FormulaCompiler {
+    /** The generated code of a formula. */
+    interface Compiled {
+        double eval(Formula.Values values);
+    }
+
+    // Marks a formula that failed to compile, so it is not tried again.
+    private static final Compiled INTERPRETED = values -> Double.NaN;
+
+    private static final String VALUES = "Formula$Values", FUNCTION = "Formula$Function";
+
+    private final int threshold;
+    private final AtomicInteger compiled = new AtomicInteger();
+
+    /**
+     * @param threshold a formula is compiled once it is evaluated more than this many times (0: on first use).
+     */
+    public FormulaCompiler(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /** The number of formulas compiled so far. */
+    public int compiledCount() {
+        return compiled.get();
+    }
+
+    /** Evaluates the formula: compiled code if it is hot, the interpreter otherwise. */
+    double eval(Formula formula, Formula.Values values) {
+        Compiled code = formula.compiled;
+        if (code == null && ++formula.evaluations > threshold) { // a lost count under parallel evaluation only delays compiling
+            code = compile(formula);
+        }
+        return code == null || code == INTERPRETED ? formula.eval(values) : code.eval(values);
+    }
+
+    private synchronized Compiled compile(Formula formula) {
+        if (formula.compiled == null) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile(formula), true);
+                formula.compiled = (Compiled) lookup.lookupClass().getDeclaredConstructor().newInstance();
+                compiled.incrementAndGet();
+            } catch (ReflectiveOperationException | LinkageError | IllegalArgumentException e) {
+                formula.compiled = INTERPRETED; // e.g., a formula too long for one method
+            }
+        }
+        return formula.compiled;
+    }
+
+    // A class implementing Compiled, whose eval() computes the formula exactly as Formula.eval() does.
+    static byte[] classFile(Formula formula) {
+        ClassWriter cw = new ClassWriter();
+        int thisClass = cw.classRef("CompiledFormula");
+        int superClass = cw.classRef("java/lang/Object");
+        int compiledInterface = cw.classRef("FormulaCompiler$Compiled");
+        int objectInit = cw.memberRef(10, "java/lang/Object", "<init>", "()V");
+
+        Code init = new Code(cw);
+        init.op(0x2a, 1);                      // aload_0
+        init.op(0xb7, -1).u2(objectInit);      // invokespecial Object.<init>
+        init.op(0xb1, 0);                      // return
+
+        Code eval = new Code(cw);
+        eval.emit(formula);
+        eval.op(0xaf, -2);                     // dreturn
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            int initName = cw.utf8("<init>"), initType = cw.utf8("()V");
+            int evalName = cw.utf8("eval"), evalType = cw.utf8("(L" + VALUES + ";)D");
+            int codeName = cw.utf8("Code");
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            cw.writeConstants(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(compiledInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            init.writeMethod(out, initName, initType, codeName, 1);
+            eval.writeMethod(out, evalName, evalType, codeName, 4); // this, values, and one double temporary
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by a byte array stream
+        }
+        return bytes.toByteArray();
+    }
+
+    // The constant pool of the generated class.
+    private static final class ClassWriter {
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(pool);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String s) {
+            return constant("U" + s, 1, () -> {
+                out.writeByte(1);
+                out.writeUTF(s);
+            });
+        }
+
+        int integer(int value) {
+            return constant("I" + value, 1, () -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int doubleValue(double value) {
+            return constant("D" + Double.doubleToRawLongBits(value), 2, () -> {
+                out.writeByte(6);
+                out.writeDouble(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return constant("C" + name, 1, () -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        // tag 9: field, 10: method, 11: interface method.
+        int memberRef(int tag, String owner, String name, String type) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name), typeIndex = utf8(type);
+            int nameAndType = constant("N" + name + ";" + type, 1, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return constant(tag + owner + "." + name + type, 1, () -> {
+                out.writeByte(tag);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private interface Entry {
+            void write() throws IOException;
+        }
+
+        private int constant(String key, int slots, Entry entry) {
+            Integer index = indices.get(key);
+            if (index != null) return index;
+            try {
+                entry.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            indices.put(key, next);
+            next += slots;
+            if (next > 0xFFFF) throw new IllegalArgumentException("constant pool overflow");
+            return next - slots;
+        }
+
+        void writeConstants(DataOutputStream target) throws IOException {
+            out.flush();
+            target.writeShort(next);
+            pool.writeTo(target);
+        }
+    }
+
+    // The bytecode of one method, with its operand stack depth (in slots) tracked for max_stack.
+    private static final class Code {
+        private final ClassWriter cw;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int depth, maxDepth;
+
+        Code(ClassWriter cw) {
+            this.cw = cw;
+        }
+
+        Code op(int opcode, int stackChange) {
+            code.write(opcode);
+            depth += stackChange;
+            maxDepth = Math.max(maxDepth, depth);
+            return this;
+        }
+
+        Code u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+            return this;
+        }
+
+        private void pushInt(int value) {
+            int index = cw.integer(value);
+            if (index <= 0xFF) {
+                op(0x12, 1).code.write(index);   // ldc
+            } else {
+                op(0x13, 1).u2(index);           // ldc_w
+            }
+        }
+
+        private void pushDouble(double value) {
+            op(0x14, 2).u2(cw.doubleValue(value)); // ldc2_w
+        }
+
+        // Leaves the formula's value on the stack.
+        void emit(Formula formula) {
+            if (formula instanceof Formula.Constant c) {
+                pushDouble(c.value);
+            } else if (formula instanceof Formula.Reference r) {
+                op(0x2b, 1);                                                  // aload_1 (values)
+                pushInt(r.col);
+                pushInt(r.row);
+                op(0xb9, -1).u2(cw.memberRef(11, VALUES, "number", "(II)D")); // invokeinterface
+                code.write(3);
+                code.write(0);
+            } else if (formula instanceof Formula.Aggregate a) {
+                op(0x2b, 1);                                                  // aload_1 (values)
+                op(0xb2, 1).u2(cw.memberRef(9, FUNCTION, a.function.name(), "L" + FUNCTION + ";")); // getstatic
+                pushInt(a.fromCol);
+                pushInt(a.fromRow);
+                pushInt(a.toCol);
+                pushInt(a.toRow);
+                op(0xb9, -4).u2(cw.memberRef(11, VALUES, "aggregate", "(L" + FUNCTION + ";IIII)D"));
+                code.write(6);
+                code.write(0);
+            } else if (formula instanceof Formula.Negate n) {
+                emit(n.operand);
+                op(0x77, 0);                                                  // dneg
+            } else if (formula instanceof Formula.Binary b) {
+                emitBinary(b);
+            } else {
+                throw new IllegalArgumentException("unknown formula node: " + formula.getClass());
+            }
+        }
+
+        // NaN operands need no test: + - * / of a NaN is NaN. Only division by zero is checked.
+        private void emitBinary(Formula.Binary b) {
+            emit(b.left);
+            emit(b.right);
+            switch (b.op) {
+                case '+' -> op(0x63, -2);  // dadd
+                case '-' -> op(0x67, -2);  // dsub
+                case '*' -> op(0x6b, -2);  // dmul
+                case '/' -> {
+                    op(0x39, -2).code.write(2);       // dstore_2 (the divisor)
+                    op(0x18, 2).code.write(2);        // dload 2
+                    op(0x0e, 2);                      // dconst_0
+                    op(0x97, -3);                     // dcmpl
+                    int branch = code.size();
+                    op(0x9a, -1).u2(0);               // ifne divide
+                    op(0x58, -2);                     // pop2 (the dividend)
+                    pushDouble(Double.NaN);
+                    int jump = code.size();
+                    op(0xa7, 0).u2(0);                // goto end (both paths leave one double)
+                    int divide = code.size();
+                    op(0x18, 2).code.write(2);        // dload 2
+                    op(0x6f, -2);                     // ddiv
+                    int end = code.size();
+                    patch(branch, divide - branch);
+                    patch(jump, end - jump);
+                }
+                default -> throw new IllegalArgumentException("unknown operator: " + b.op);
+            }
+        }
+
+        private void patch(int at, int offset) {
+            if (offset > Short.MAX_VALUE) throw new IllegalArgumentException("method too long");
+            byte[] patched = code.toByteArray();
+            patched[at + 1] = (byte) (offset >> 8);
+            patched[at + 2] = (byte) offset;
+            code.reset();
+            code.write(patched, 0, patched.length);
+        }
+
+        void writeMethod(DataOutputStream out, int name, int type, int codeName, int maxLocals) throws IOException {
+            if (code.size() > 0xFFFF) throw new IllegalArgumentException("method too long");
+            out.writeShort(0x0001); // public
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);      // attributes: Code
+            out.writeShort(codeName);
+            out.writeInt(12 + code.size());
+            out.writeShort(maxDepth);
+            out.writeShort(maxLocals);
+            out.writeInt(code.size());
+            code.writeTo(out);
+            out.writeShort(0);      // exception table
+            out.writeShort(0);      // attributes
+        }
+    }
+}
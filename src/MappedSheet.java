@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only view of a binary sheet file (see BinarySheetFile, and Ex2Sheet.saveBinary()), memory-mapped
+ * rather than read: opening it checks the header, the records and the string offsets without decoding
+ * any string, and each access decodes just what it needs - a binary search over the cell records and
+ * the strings of the cell found, each decoded once. So the cost of a large model is in a scan of its
+ * fixed-size tables and the strings actually touched, not in parsing the file.
+ *
+ * The values are the ones evaluated when the file was saved. To change the cells, load the file into
+ * a Sheet instead (Sheet.load() reads binary files as well as text ones).
+ * A MappedSheet may be read from several threads at once.
+ */
+public final class MappedSheet {
+    private final ByteBuffer buffer;
+    private final int width, height, size;
+    private final boolean values;
+    private final int stringOffsets, stringBytes; // positions of the string table's offsets and bytes
+    private final String[] strings; // decoded strings, null until first used
+
+    private MappedSheet(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < BinarySheetFile.HEADER_SIZE || buffer.getInt(0) != BinarySheetFile.MAGIC) {
+            throw new IOException("not a binary sheet file");
+        }
+        if (buffer.getShort(4) != BinarySheetFile.VERSION) {
+            throw new IOException("unsupported binary sheet version: " + buffer.getShort(4));
+        }
+        values = (buffer.getShort(6) & BinarySheetFile.VALUES) != 0;
+        width = buffer.getInt(8);
+        height = buffer.getInt(12);
+        size = buffer.getInt(16);
+        int stringCount = buffer.getInt(20);
+        if (width < 0 || height < 0 || size < 0 || stringCount < 0) {
+            throw new IOException("corrupt binary sheet file: negative dimensions or counts");
+        }
+        // In long: a corrupt count must not overflow into a position that seems to be in the file.
+        long offsets = BinarySheetFile.HEADER_SIZE + (long) size * BinarySheetFile.RECORD_SIZE;
+        long bytes = offsets + ((long) stringCount + 1) * 4;
+        if (bytes > buffer.limit()) {
+            throw new IOException("truncated binary sheet file");
+        }
+        int stringsLength = buffer.getInt((int) bytes - 4); // the offset past the last string
+        if (stringsLength < 0 || bytes + stringsLength > buffer.limit()) {
+            throw new IOException("truncated binary sheet file");
+        }
+        stringOffsets = (int) offsets;
+        stringBytes = (int) bytes;
+        strings = new String[stringCount];
+        validate(stringCount, stringsLength);
+    }
+
+    // Checks every record and string offset against the header, so no later access goes out of the sheet
+    // or of the file: each cell is in the sheet, the keys increase (for find()) and the strings are in the table.
+    private void validate(int stringCount, int stringsLength) throws IOException {
+        long previous = -1;
+        for (int i = 0; i < size; i++) {
+            long key = key(i);
+            if (key <= previous || !isIn(DependencyGraph.col(key), DependencyGraph.row(key))
+                    || !isString(field(i, 8), stringCount) || (values && !isString(field(i, 12), stringCount))) {
+                throw new IOException("corrupt sheet file: record " + i);
+            }
+            previous = key;
+        }
+        int from = 0;
+        for (int index = 0; index <= stringCount; index++) {
+            int to = buffer.getInt(stringOffsets + index * 4);
+            if (to < from || to > stringsLength) {
+                throw new IOException("corrupt sheet file: string " + index);
+            }
+            from = to;
+        }
+    }
+
+    private static boolean isString(int index, int stringCount) {
+        return index >= 0 && index < stringCount;
+    }
+
+    /**
+     * Maps the file; it is not read until its cells are.
+     * @throws IOException if the file cannot be read, is not a binary sheet file, is truncated or corrupt, or
+     * is larger than 2GB.
+     */
+    public static MappedSheet open(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("binary sheet file too large to map: " + channel.size());
+            }
+            return new MappedSheet(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public boolean isIn(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /**
+     * @return the cell at x,y (EmptyCell.INSTANCE if it holds no data), or null if x,y is out of the sheet.
+     * The cell is immutable.
+     */
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) return null;
+        int i = find(x, y);
+        if (i < 0) return EmptyCell.INSTANCE;
+        return new CellSnapshot(data(i), value(i), field(i, 20), field(i, 16)); // the record holds the order, then the type
+    }
+
+    /** @return the string presented at x,y when the file was saved, or the cell's data if no values were saved. */
+    public String value(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+        int i = find(x, y);
+        return i < 0 ? Ex2Utils.EMPTY_CELL : value(i);
+    }
+
+    /** The depths saved with the cells, as Sheet.depth() computed them. */
+    public int[][] depth() {
+        int[][] depths = new int[width][height];
+        for (int i = 0; i < size; i++) {
+            long key = key(i);
+            depths[DependencyGraph.col(key)][DependencyGraph.row(key)] = field(i, 16);
+        }
+        return depths;
+    }
+
+    // The records, in key order.
+
+    int size() {
+        return size;
+    }
+
+    long key(int i) {
+        return buffer.getLong(BinarySheetFile.HEADER_SIZE + i * BinarySheetFile.RECORD_SIZE);
+    }
+
+    String data(int i) {
+        return string(field(i, 8));
+    }
+
+    private String value(int i) {
+        return values ? string(field(i, 12)) : data(i);
+    }
+
+    private int field(int i, int offset) {
+        return buffer.getInt(BinarySheetFile.HEADER_SIZE + i * BinarySheetFile.RECORD_SIZE + offset);
+    }
+
+    // The record of the cell, or -1 if the file holds no data for it.
+    private int find(int col, int row) {
+        long key = DependencyGraph.key(col, row);
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = key(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String string(int index) {
+        String s = strings[index];
+        if (s == null) {
+            int from = buffer.getInt(stringOffsets + index * 4), to = buffer.getInt(stringOffsets + index * 4 + 4);
+            byte[] bytes = new byte[to - from];
+            buffer.get(stringBytes + from, bytes); // an absolute get: safe with concurrent readers
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = s;
+        }
+        return s;
+    }
+}
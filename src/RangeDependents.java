@@ -0,0 +1,69 @@
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * The formulas whose aggregate ranges (e.g. SUM(A0:C99999)) cover a cell, without one edge per covered cell.
+ * Each column is a segment tree over the rows: a range's row interval is stored at the O(log rows)
+ * canonical nodes that exactly cover it, and the formulas covering a row are found on the path from
+ * its leaf to the root. A range of k columns costs O(k log rows) to add or remove, and a cell query
+ * costs O(log rows + answers) - independently of the size of the ranges.
+ */
+final class RangeDependents {
+    private static final long ROWS = 1L << 30; // leaves for every row a reference can have (9 digits)
+
+    private final Map<Long, Set<Long>> nodes = new HashMap<>(); // DependencyGraph.key(col, node) -> formulas
+    private final Map<Integer, Integer> rangesPerColumn = new HashMap<>(); // lets columns without ranges skip the walk
+
+    /** Records that the formula at the packed cell reads the range. */
+    void add(long formula, Formula.Aggregate range) {
+        for (int col = range.fromCol; col <= range.toCol; col++) {
+            rangesPerColumn.merge(col, 1, Integer::sum);
+            forEachNode(col, range.fromRow, range.toRow,
+                    node -> nodes.computeIfAbsent(node, k -> new HashSet<>()).add(formula));
+        }
+    }
+
+    /** Removes a range recorded by add() for the same formula. */
+    void remove(long formula, Formula.Aggregate range) {
+        for (int col = range.fromCol; col <= range.toCol; col++) {
+            rangesPerColumn.computeIfPresent(col, (k, count) -> count == 1 ? null : count - 1);
+            forEachNode(col, range.fromRow, range.toRow, node -> {
+                Set<Long> formulas = nodes.get(node);
+                if (formulas != null) {
+                    formulas.remove(formula);
+                    if (formulas.isEmpty()) {
+                        nodes.remove(node);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Adds the formulas whose ranges cover (col,row) to out. */
+    void collect(int col, int row, Collection<Long> out) {
+        if (!rangesPerColumn.containsKey(col)) return;
+        for (long node = ROWS + row; node > 0; node >>= 1) {
+            Set<Long> formulas = nodes.get(DependencyGraph.key(col, (int) node));
+            if (formulas != null) {
+                out.addAll(formulas);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return rangesPerColumn.isEmpty();
+    }
+
+    void clear() {
+        nodes.clear();
+        rangesPerColumn.clear();
+    }
+
+    // Calls the action with the packed keys of the canonical nodes covering rows fromRow..toRow of a column.
+    private static void forEachNode(int col, int fromRow, int toRow, LongConsumer action) {
+        for (long lo = ROWS + fromRow, hi = ROWS + toRow + 1; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) action.accept(DependencyGraph.key(col, (int) lo++));
+            if ((hi & 1) == 1) action.accept(DependencyGraph.key(col, (int) --hi));
+        }
+    }
+}
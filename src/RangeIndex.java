@@ -0,0 +1,148 @@
+/**
+ * Answers the aggregate functions of formulas (see Formula.Function) without rescanning their ranges.
+ * Every column covered by some range keeps a segment tree of the sum, count, minimum and maximum of
+ * its numbers, and of the number of its error cells, so set() and eval() update a cell in O(log rows)
+ * and a range of k columns is answered in O(k log rows). Prefix sums would answer a SUM in O(1), but
+ * cost O(rows) per update.
+ *
+ * A range holding an error (ERR_FORM or a cycle) has no value, as a reference to the error would not;
+ * text and empty cells are skipped.
+ *
+ * The sheet reports every change of a cell's number through update(); columns are built (from the
+ * Source) only once cover() is called for them, so sheets without ranges pay nothing.
+ * update() and aggregate() may be called from parallel evaluation threads.
+ */
+final class RangeIndex {
+    /** The current state of a cell, without evaluating anything. */
+    interface Source {
+        /** The cell's number, NaN if it holds none. */
+        double number(int col, int row);
+
+        /** True iff the cell holds an error rather than a number, text or nothing. */
+        boolean isError(int col, int row);
+    }
+
+    private final Source source;
+    private final Column[] columns;
+    private final int height;
+
+    RangeIndex(int width, int height, Source source) {
+        this.source = source;
+        this.columns = new Column[width];
+        this.height = height;
+    }
+
+    /** Makes sure rows 0..toRow of the columns fromCol..toCol are indexed; parts out of the sheet are ignored. */
+    void cover(int fromCol, int toCol, int toRow) {
+        toCol = Math.min(toCol, columns.length - 1);
+        toRow = Math.min(toRow, height - 1);
+        for (int col = fromCol; col <= toCol; col++) {
+            if (columns[col] == null || columns[col].rows <= toRow) {
+                int rows = columns[col] == null ? toRow + 1 : Math.min(height, Math.max(toRow + 1, columns[col].rows * 2));
+                columns[col] = new Column(col, rows);
+            }
+        }
+    }
+
+    /** Records the new number (NaN for none) of the col,row cell, and whether that is because of an error. */
+    void update(int col, int row, double number, boolean error) {
+        Column column = columns[col];
+        if (column != null && row < column.rows) {
+            column.set(row, number, error);
+        }
+    }
+
+    /** Changes whenever a number in the column changes (see FormulaCache); 0 for a column that is not indexed. */
+    long version(int col) {
+        Column column = columns[col];
+        return column == null ? 0 : column.version;
+    }
+
+    /**
+     * The function over the numbers in fromCol,fromRow .. toCol,toRow, which must have been covered;
+     * NaN if the range holds an error.
+     */
+    double aggregate(Formula.Function function, int fromCol, int fromRow, int toCol, int toRow) {
+        Totals totals = new Totals();
+        for (int col = fromCol; col <= toCol; col++) {
+            columns[col].query(fromRow, toRow, totals);
+        }
+        if (totals.errors > 0) return Double.NaN;
+        return function.result(totals.sum, totals.count, totals.min, totals.max);
+    }
+
+    private static final class Totals {
+        double sum, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        int count, errors;
+    }
+
+    // Bottom-up segment tree: the leaf of row r is node rows + r, and node i combines nodes 2i and 2i+1.
+    private final class Column {
+        final int rows;
+        final double[] sum, min, max;
+        final int[] count, errors;
+        volatile long version = FormulaCache.nextVersion();
+
+        Column(int col, int rows) {
+            this.rows = rows;
+            sum = new double[2 * rows];
+            min = new double[2 * rows];
+            max = new double[2 * rows];
+            count = new int[2 * rows];
+            errors = new int[2 * rows];
+            for (int row = 0; row < rows; row++) {
+                leaf(rows + row, source.number(col, row), source.isError(col, row));
+            }
+            for (int node = rows - 1; node > 0; node--) {
+                combine(node);
+            }
+        }
+
+        private void leaf(int node, double number, boolean error) {
+            boolean isNumber = !error && !Double.isNaN(number);
+            sum[node] = isNumber ? number : 0;
+            count[node] = isNumber ? 1 : 0;
+            errors[node] = error ? 1 : 0;
+            min[node] = isNumber ? number : Double.POSITIVE_INFINITY;
+            max[node] = isNumber ? number : Double.NEGATIVE_INFINITY;
+        }
+
+        private void combine(int node) {
+            int left = 2 * node, right = left + 1;
+            sum[node] = sum[left] + sum[right];
+            count[node] = count[left] + count[right];
+            errors[node] = errors[left] + errors[right];
+            min[node] = Math.min(min[left], min[right]);
+            max[node] = Math.max(max[left], max[right]);
+        }
+
+        synchronized void set(int row, double number, boolean error) {
+            int node = rows + row;
+            boolean isNumber = !error && !Double.isNaN(number);
+            if (count[node] == (isNumber ? 1 : 0) && errors[node] == (error ? 1 : 0)
+                    && (!isNumber || Double.compare(sum[node], number) == 0)) {
+                return; // unchanged
+            }
+            leaf(node, number, error);
+            for (node >>= 1; node > 0; node >>= 1) {
+                combine(node);
+            }
+            version = FormulaCache.nextVersion();
+        }
+
+        synchronized void query(int fromRow, int toRow, Totals totals) {
+            for (int lo = rows + fromRow, hi = rows + toRow + 1; lo < hi; lo >>= 1, hi >>= 1) {
+                if ((lo & 1) == 1) add(lo++, totals);
+                if ((hi & 1) == 1) add(--hi, totals);
+            }
+        }
+
+        private void add(int node, Totals totals) {
+            totals.sum += sum[node];
+            totals.count += count[node];
+            totals.errors += errors[node];
+            totals.min = Math.min(totals.min, min[node]);
+            totals.max = Math.max(totals.max, max[node]);
+        }
+    }
+}
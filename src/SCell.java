@@ -2,15 +2,22 @@
 public class SCell implements Cell {
     private String line; //השורה שמזינים לתא
     private int type; // סוג התא (טקסט , מספר , נוסחה)
-    private String value; // ערך התא
+    private String value; // ערך התא להצגה (טקסט או שגיאה, או המספר לאחר עיצוב)
+    private double number = Double.NaN; // התוצאה המספרית של התא, NaN אם התא אינו מספר
+    private boolean evaluated; // האם התא חושב מאז ששונה
+    private boolean evaluating; // האם התא באמצע חישוב, כדי שנוסחה לא תחשב אותו שוב מתוך עצמו
+    private int order; // עומק התא כפי שחושב בהערכה האחרונה של הגיליון
+    private long version; // משתנה בכל פעם שהתוצאה המספרית של התא משתנה (ראו FormulaCache)
+    private Formula formula; // הנוסחה המפוענחת, נשמרת כדי לא לפענח מחדש בכל חישוב
     private final Ex2Sheet sheet;
-    private final String cellName; // שם התא
+    private final int col, row; // מיקום התא, ממנו נגזר שם התא רק כשמבקשים אותו
 
 
-    public SCell(String s, Ex2Sheet sheet, String cellName) {
+    public SCell(String s, Ex2Sheet sheet, int col, int row) {
         this.sheet = sheet;
-        this.cellName = cellName;
-        setData(s); // הגדרת הנתונים ההתחלתיים של התא
+        this.col = col;
+        this.row = row;
+        parse(s); // הגדרת הנתונים ההתחלתיים של התא (התא עוד לא שמור בגיליון)
         setType(Ex2Utils.TEXT); // קביעת הטיפוס כהתחלתי לטקסט
     }
 
@@ -32,154 +39,51 @@ public class SCell implements Cell {
         return str != null && str.startsWith("="); // בדיקה אם התוכן מתחיל בסימן שווה
     }
 
-    // מחזיר את סימן הפעולה
-    private boolean isOperator(char character) {
-        return character == '+' || character == '-' || character == '*' || character == '/'; // בדיקה אם התו הוא אופרטור מתמטי
-    }
-
     public boolean isText() {
         return !isNumber() && !isForm();
     } // אני בודק את זה בפונקציה אחרת
 
-    // עושה את פעולת החיבור כפל חיסור חילוק לפי היסמן פעולה שהגיע
-    private Double calculate(Double leftOperand, Double rightOperand, char operation) {
-        return switch (operation) {
-            case '+' -> leftOperand + rightOperand;
-            case '-' -> leftOperand - rightOperand;
-            case '*' -> leftOperand * rightOperand;
-            case '/' -> rightOperand != 0 ? leftOperand / rightOperand : null; // מניעת חלוקה באפס
-            default -> null;
-        };
+    // מחשב את הנוסחה השמורה בתא (היא מפוענחת פעם אחת בלבד, ב-setData)
+    public Double computeForm() {
+        return evaluate(formula);
+    }
+
+    // כמו computeForm אבל בלי עטיפה ל-Double: מחזיר NaN אם החישוב נכשל
+    public double computeValue() {
+        return formula == null ? Double.NaN : formula.eval(sheet);
     }
 
+    // מחשב נוסחה כלשהי שלא שמורה בתא
     public Double computeForm(String form) {
         if (form == null || form.isEmpty()) {
             return null; // הפורמולה ריקה או לא הותחלה
         }
+        return evaluate(Formula.parse(form));
+    }
 
-        // הסר את סימן = אם קיים
-        if (form.startsWith("=")) {
-            form = form.substring(1).trim();
-        }
-
-        form = form.replaceAll("\\s+", ""); // הסרת רווחים מיותרים
-
-        // אם מספר
-        try {
-            double val = Double.parseDouble(form);
-            return val;  // אם הצלחנו להפוך לדאבל זה בטוח מספר
-        } catch (NumberFormatException ignored) {
-            // אם לא הצלחנו להפוך לדאבל זה בטוח מספר , נמשיך לשאר הבדיקות
-        }
-
-        for (int i = 0; i < form.length() - 1; i++) {
-            char currentChar = form.charAt(i);
-            char nextChar = form.charAt(i + 1);
-            if (isOperator(currentChar) && isOperator(nextChar)) { // זיהוי אופרטורים כפולים
-                return null;
-            }
-        }
-
-        while (form.startsWith("(") && form.endsWith(")")) {
-            String innerContent = form.substring(1, form.length() - 1);
-            if (hasBalancedParentheses(innerContent)) { // בדיקת סוגריים פנימית
-                form = innerContent;
-                try {
-                    return Double.parseDouble(form);
-                } catch (NumberFormatException ignored) {
-                }
-            } else {
-                break;
-            }
-        }
-
-        // בדיקת הפניית תא - רק אם זה בדיוק אות אחת ואחריה מספרים
-        if (form.matches("^[A-Za-z][0-9]+$") && !form.matches(".*\\d+[eE][-+]?\\d+")) {
-            try {
-                Double.parseDouble(form);
-                return Double.parseDouble(form);  // אם זה מספר תקין, נחזיר אותו
-            } catch (NumberFormatException e) {
-                // אם זה לא מספר, נטפל בו כהפניית תא
-                int column = Character.toUpperCase(form.charAt(0)) - 'A';
-                int row = Integer.parseInt(form.substring(1));
-                String referencedCellValue = sheet.value(column, row); // הפניית ערך התא
-                try {
-                    return Double.parseDouble(referencedCellValue);
-                } catch (NumberFormatException ex) {
-                    return null;
-                }
-            }
-        }
-
-        int operatorIdx = -1;
-        int parenthesesCounter = 0;
-        boolean operatorLocated = false;
-
-        for (int i = form.length() - 1; i >= 0; i--) {
-            char character = form.charAt(i);
-            if (character == ')') parenthesesCounter++;
-            else if (character == '(') parenthesesCounter--;
-            else if (parenthesesCounter == 0 && (character == '+' || character == '-')) {
-                if (i > 0 && isOperator(form.charAt(i - 1))) {
-                    continue;
-                }
-                operatorIdx = i; // זיהוי האופרטור העיקרי בחישוב
-                break;
-            } else if (parenthesesCounter == 0 && !operatorLocated && (character == '*' || character == '/')) {
-                operatorIdx = i;
-            }
-        }
-
-        if (operatorIdx == -1) {
-            try {
-                return Double.parseDouble(form);
-            } catch (NumberFormatException e) {
-                return null;
-            }
-        }
-
-        String leftExpression = form.substring(0, operatorIdx).trim();
-        char operation = form.charAt(operatorIdx);
-        String rightExpression = form.substring(operatorIdx + 1).trim();
-
-        if (leftExpression.isEmpty()) {
-            if (operation == '-') {
-                try {
-                    return -Double.parseDouble(rightExpression);
-                } catch (NumberFormatException e) {
-                    Double rightValue = computeForm(rightExpression);
-                    return rightValue != null ? -rightValue : null;
-                }
-            }
-            return computeForm(rightExpression);
-        }
-
-        Double leftValue = computeForm(leftExpression);
-        Double rightValue = computeForm(rightExpression);
-
-        if (leftValue == null || rightValue == null) {
-            return null;
+    private Double evaluate(Formula f) {
+        if (f == null) {
+            return null; // הנוסחה לא חוקית
         }
-
-        return calculate(leftValue, rightValue, operation);
+        double result = f.eval(sheet);
+        return Double.isNaN(result) ? null : result; // NaN מסמן שגיאה בחישוב (למשל חילוק באפס)
     }
 
-
-    // בודק שהכמות סוגריים סוגרים ופותחים מאוזנת
-    private boolean hasBalancedParentheses(String str) {
-        int balanceCounter = 0;
-        for (char character : str.toCharArray()) {
-            if (character == '(') balanceCounter++;
-            if (character == ')') balanceCounter--;
-            if (balanceCounter < 0) return false; // אם יש יותר סוגרים סוגרים
-        }
-        return balanceCounter == 0; // וידוא שכל הסוגריים מאוזנים
+    public Formula getFormula() {
+        return formula; // העץ של הנוסחה, או null אם התא אינו נוסחה חוקית
     }
 
     @Override
     public String toString() {
-        if (cellName != null && !cellName.isEmpty()) {
-            return cellName; // הצגת שם התא במידה וקיים
+        if (col >= 0 && row >= 0) {
+            return CellReference.name(col, row); // הצגת שם התא במידה ויש לו מיקום
+        }
+
+        if (evaluated && !Double.isNaN(number)) {
+            if (Math.abs(number) >= 1e6 || (Math.abs(number) < 1e-6 && number != 0)) {
+                return String.format("%.1e", number);
+            }
+            return String.format("%.1f", number); // הצגת מספר בפורמט עם ספרה אחרי הנקודה
         }
 
         if (value != null) {
@@ -200,7 +104,7 @@ public class SCell implements Cell {
         }
 
         if (isForm()) {
-            Double evaluatedResult = computeForm(data);
+            Double evaluatedResult = computeForm();
             if (evaluatedResult != null) {
                 if (Math.abs(evaluatedResult) >= 1e6 || (Math.abs(evaluatedResult) < 1e-6 && evaluatedResult != 0)) {
                     return String.format("%.1e", evaluatedResult);
@@ -225,9 +129,18 @@ public class SCell implements Cell {
         return data;
     }
 
+    // שינוי התוכן של תא ששמור בגיליון מעדכן גם את הגיליון (גרף התלויות והתאים שצריך לחשב מחדש)
     @Override
     public void setData(String s) {
+        parse(s);
+        if (sheet != null) {
+            sheet.dataChanged(this, col, row);
+        }
+    }
+
+    private void parse(String s) {
         line = s; // הגדרת תוכן התא
+        formula = null;
 
         // קביעת הטיפוס המתאים
         if (s == null || s.trim().isEmpty()) {
@@ -235,6 +148,8 @@ public class SCell implements Cell {
         }
         else if (s.startsWith("=")) {
             setType(Ex2Utils.FORM);
+            // פענוח חד פעמי של הנוסחה, תתי-ביטויים זהים משותפים עם שאר הנוסחאות בגיליון
+            formula = sheet == null ? Formula.parse(s) : Formula.parse(s, sheet.subtrees());
         }
         else {
             try {
@@ -263,18 +178,57 @@ public class SCell implements Cell {
 
     @Override
     public int getOrder() { // מחזיר את העומק
-        return 0;
+        return order;
     }
 
     @Override
     public void setOrder(int t) {
+        order = t;
     }
 
+    // הגדרת ערך טקסט (או שגיאה) לתא לאחר חישוב, null מסמן שהתא צריך חישוב מחדש
     public void setEvaluatedValue(String value) {
-        this.value = value; // הגדרת ערך התא לאחר חישוב
+        this.value = value;
+        this.number = Double.NaN;
+        this.evaluated = value != null;
+    }
+
+    // הגדרת תוצאה מספרית לתא - הטקסט להצגה ייווצר רק כשיבקשו אותו
+    public void setEvaluatedNumber(double number) {
+        this.value = null;
+        this.number = number;
+        this.evaluated = true;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isEvaluated() {
+        return evaluated;
+    }
+
+    public boolean isEvaluating() {
+        return evaluating;
+    }
+
+    public void setEvaluating(boolean evaluating) {
+        this.evaluating = evaluating;
+    }
+
+    // התוצאה המספרית של התא (NaN אם התא אינו מספר), בלי המרה למחרוזת וחזרה
+    public double getNumber() {
+        return number;
     }
 
     public String getEvaluatedValue() {
+        if (evaluated && value == null) {
+            value = String.format("%.1f", number); // עיצוב עצל, פעם אחת בלבד
+        }
         return value; // החזרת הערך המחושב של התא
     }
 }
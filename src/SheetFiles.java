@@ -0,0 +1,378 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The text file formats shared by the Sheet implementations.
+ *
+ * save() writes the sparse format documented by Sheet.save(): a header line, then a "x,y,data" line
+ * for every non-empty cell only, so a file grows with the populated cells rather than the dimensions.
+ * The header ends with the dimensions ("size=WxH"); a header without them loads into a sheet of
+ * Ex2Utils.WIDTH x HEIGHT. Anything after the data field is a remark, and lines that are not in this
+ * format, or are out of the sheet, are ignored.
+ *
+ * load() also reads the dense format older versions saved: a "width,height" line, followed by one line
+ * per column holding all its cells ("EMPTY" for an empty one). It is told apart by its first line.
+ *
+ * In both formats ',' and new lines in the data are escaped as "\," and "\n". Text files are in UTF-8,
+ * as the journal's records are (see SheetJournal), whatever the platform's default charset.
+ * load() reads binary files too (see BinarySheetFile).
+ *
+ * Saves are atomic: the file is replaced only once its new content is on the disk (see writeAtomically()).
+ */
+class SheetFiles {
+    static final String HEADER = "I2CS ArielU: SpreadSheet (Ex2) assignment - this line should be ignored in the load method";
+
+    private static final Pattern SIZE = Pattern.compile("size=(\\d+)x(\\d+)\\s*$");
+    private static final Pattern DENSE_DIMENSIONS = Pattern.compile("(\\d+),(\\d+)");
+
+    /** Receives the content of a loaded file. */
+    interface Target {
+        /** Called once, before any cell, with the dimensions of the loaded sheet. */
+        void reset(int width, int height);
+
+        /** Called for every non-empty cell in the file. */
+        void put(int col, int row, String data);
+    }
+
+    /** Saves the sheet, looking up every position for its non-empty cells. */
+    static void save(Sheet sheet, String fileName) throws IOException {
+        writeText(fileName, writer -> {
+            writeHeader(sheet.width(), sheet.height(), writer);
+            for (int col = 0; col < sheet.width(); col++) {
+                for (int row = 0; row < sheet.height(); row++) {
+                    writeCell(writer, col, row, sheet.get(col, row).getData());
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the sheet, looking up the given cells only.
+     * @param cells the packed keys (see DependencyGraph.key) of all the non-empty cells, in any order.
+     */
+    static void save(Sheet sheet, long[] cells, String fileName) throws IOException {
+        long[] sorted = cells.clone();
+        Arrays.sort(sorted); // by column, then row
+        writeText(fileName, writer -> {
+            writeHeader(sheet.width(), sheet.height(), writer);
+            for (long key : sorted) {
+                int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+                writeCell(writer, col, row, sheet.get(col, row).getData());
+            }
+        });
+    }
+
+    /** Saves the data of a width x height sheet that is not held by a Sheet, keyed by DependencyGraph.key(col,row). */
+    static void save(int width, int height, LongHashMap<String> cells, String fileName) throws IOException {
+        long[] sorted = cells.keys();
+        Arrays.sort(sorted);
+        writeText(fileName, writer -> {
+            writeHeader(width, height, writer);
+            for (long key : sorted) {
+                writeCell(writer, DependencyGraph.col(key), DependencyGraph.row(key), cells.get(key));
+            }
+        });
+    }
+
+    private interface Content {
+        void write(BufferedWriter writer) throws IOException;
+    }
+
+    /** Writes the content of a file saved by writeAtomically(). */
+    interface Output {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeText(String fileName, Content content) throws IOException {
+        writeAtomically(fileName, out -> {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            content.write(writer);
+            writer.flush();
+        });
+    }
+
+    /**
+     * Writes a temporary file, forces it to the disk and only then renames it over the file, so a crash
+     * while saving leaves the previous file whole rather than a truncated one. The temporary file has a
+     * name of its own ("name.N.tmp"), so saves of the same file never write over each other's. The file
+     * keeps its permissions; a new one gets the default permissions, as if it were written in place.
+     * @param content writes the whole file; it must flush what it buffers, and must not close the stream.
+     */
+    static void writeAtomically(String fileName, Output content) throws IOException {
+        Path file = Path.of(fileName).toAbsolutePath();
+        Path temp = createTemporary(file);
+        try {
+            if (Files.exists(file)) {
+                copyPermissions(file, temp);
+            }
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                content.write(out);
+                out.getFD().sync();
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        syncDirectory(file.getParent()); // the rename itself is durable only once the directory is
+    }
+
+    // A new empty file named "name.N.tmp" next to the file. Unlike Files.createTempFile(), which makes it
+    // readable by its owner only, it gets the default permissions - the ones the saved file ends up with.
+    private static Path createTemporary(Path file) throws IOException {
+        while (true) {
+            String id = Long.toUnsignedString(ThreadLocalRandom.current().nextLong());
+            Path temp = file.resolveSibling(file.getFileName() + "." + id + ".tmp");
+            try {
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+                return temp;
+            } catch (FileAlreadyExistsException e) {
+                // the name of another save's temporary file: draw another one
+            }
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system: the file is replaced with the default permissions
+        }
+    }
+
+    /** Deletes the temporary files that saves of the given file left behind when they crashed. */
+    static void deleteTemporaries(Path file) throws IOException {
+        String prefix = file.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(file.toAbsolutePath().getParent())) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (name.length() > prefix.length() + 4 && name.startsWith(prefix) && name.endsWith(".tmp")) {
+                    String id = name.substring(prefix.length(), name.length() - 4);
+                    if (id.chars().allMatch(Character::isDigit)) { // a name given by writeAtomically()
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Forces the entries of the directory - the files created, renamed or deleted in it - to the disk. */
+    static void syncDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // a platform that cannot open a directory (Windows), where a rename is durable by itself
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    private static void writeHeader(int width, int height, BufferedWriter writer) throws IOException {
+        writer.write(HEADER + ", size=" + width + "x" + height + "\n");
+    }
+
+    private static void writeCell(BufferedWriter writer, int col, int row, String data) throws IOException {
+        if (isEmptyOrNull(data)) return;
+        writer.write(col + "," + row + ",");
+        writer.write(data.replace(",", "\\,").replace("\n", "\\n"));
+        writer.write("\n");
+    }
+
+    private static boolean isEmptyOrNull(String data) {
+        return data == null || data.trim().isEmpty();
+    }
+
+    /** Loads a file in either text format, or in the binary one (see BinarySheetFile). */
+    static void load(String fileName, Target target) throws IOException {
+        if (BinarySheetFile.isBinary(fileName)) {
+            BinarySheetFile.load(fileName, target);
+            return;
+        }
+        try (Reader reader = new FileReader(fileName, StandardCharsets.UTF_8)) {
+            Tokenizer in = new Tokenizer(reader);
+            String first = in.nextLine();
+            Matcher dense = DENSE_DIMENSIONS.matcher(first.trim());
+            if (dense.matches()) {
+                int width = Integer.parseInt(dense.group(1)), height = Integer.parseInt(dense.group(2));
+                target.reset(width, height);
+                loadTableContent(in, target, width, height);
+                return;
+            }
+            Matcher size = SIZE.matcher(first);
+            boolean sized = size.find();
+            int width = sized ? Integer.parseInt(size.group(1)) : Ex2Utils.WIDTH;
+            int height = sized ? Integer.parseInt(size.group(2)) : Ex2Utils.HEIGHT;
+            target.reset(width, height);
+            loadCells(in, target, width, height);
+        }
+    }
+
+    // The sparse format: one "x,y,data[,remark]" line per cell.
+    private static void loadCells(Tokenizer in, Target target, int width, int height) throws IOException {
+        while (true) {
+            int end = in.next();
+            int col = in.cellIndex();
+            if (end == Tokenizer.END_OF_CELL) {
+                end = in.next();
+                int row = in.cellIndex();
+                if (end == Tokenizer.END_OF_CELL) {
+                    end = in.next();
+                    String data = in.cell.toString();
+                    if (col >= 0 && col < width && row >= 0 && row < height && !isEmptyOrNull(data)) {
+                        target.put(col, row, data);
+                    }
+                }
+            }
+            in.skipLine(); // the remark, or the rest of a line in another format
+            if (end == Tokenizer.END_OF_FILE) return;
+        }
+    }
+
+    // The dense format: one line per column.
+    private static void loadTableContent(Tokenizer in, Target target, int width, int height) throws IOException {
+        for (int col = 0; col < width; col++) {
+            if (!loadRowContent(in, target, col, height)) return;
+        }
+    }
+
+    // Loads the line of a column; cells past the height are skipped, missing ones are left empty.
+    // Returns false at the end of the file.
+    private static boolean loadRowContent(Tokenizer in, Target target, int col, int height) throws IOException {
+        for (int row = 0; ; row++) {
+            int end = in.next();
+            if (end == Tokenizer.END_OF_FILE && row == 0 && in.cell.length() == 0) return false;
+            if (row < height && in.cell.length() > 0 && !"EMPTY".contentEquals(in.cell)) {
+                target.put(col, row, in.cell.toString());
+            }
+            if (end != Tokenizer.END_OF_CELL) return end == Tokenizer.END_OF_LINE;
+        }
+    }
+
+    /**
+     * Reads the cells of a file one at a time through a fixed buffer, decoding "\," and "\n" as it
+     * goes, so neither a whole line nor an array of its cells is ever built. A '\' followed by anything
+     * else is kept as is, like the split-and-replace decoding it replaces.
+     */
+    private static final class Tokenizer {
+        static final int END_OF_CELL = 0, END_OF_LINE = 1, END_OF_FILE = 2;
+
+        private final Reader reader;
+        private final char[] buffer = new char[1 << 16];
+        private int position, limit;
+        private int ended = END_OF_CELL; // what ended the last cell read
+        final StringBuilder cell = new StringBuilder(); // the cell last read by next(), decoded
+
+        Tokenizer(Reader reader) {
+            this.reader = reader;
+        }
+
+        /** Reads the next cell of the current line into cell, and tells what ended it. */
+        int next() throws IOException {
+            return ended = readCell();
+        }
+
+        private int readCell() throws IOException {
+            cell.setLength(0);
+            for (int c = read(); ; c = read()) {
+                switch (c) {
+                    case -1:
+                        return END_OF_FILE;
+                    case ',':
+                        return END_OF_CELL;
+                    case '\n':
+                        return END_OF_LINE;
+                    case '\r':
+                        if (peek() == '\n') position++;
+                        return END_OF_LINE;
+                    case '\\':
+                        int escaped = peek();
+                        if (escaped == ',') {
+                            cell.append(',');
+                            position++;
+                        } else if (escaped == 'n') {
+                            cell.append('\n');
+                            position++;
+                        } else {
+                            cell.append('\\');
+                        }
+                        break;
+                    default:
+                        cell.append((char) c);
+                }
+            }
+        }
+
+        /** The cell last read by next() as a non-negative int, or -1 if it is not one. Spaces around it are ignored. */
+        int cellIndex() {
+            int from = 0, to = cell.length();
+            while (from < to && cell.charAt(from) == ' ') from++;
+            while (to > from && cell.charAt(to - 1) == ' ') to--;
+            if (from == to || to - from > 9) return -1;
+            int value = 0;
+            for (int i = from; i < to; i++) {
+                char c = cell.charAt(i);
+                if (c < '0' || c > '9') return -1;
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        /** Reads the rest of the current line as is, without decoding it. */
+        String nextLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = read(); c != -1 && c != '\n'; c = read()) {
+                if (c == '\r') {
+                    if (peek() == '\n') position++;
+                    break;
+                }
+                line.append((char) c);
+            }
+            ended = END_OF_LINE;
+            return line.toString();
+        }
+
+        /** Skips what is left of the line of the last cell read. */
+        void skipLine() throws IOException {
+            if (ended != END_OF_CELL) return;
+            for (int c = read(); c != -1 && c != '\n'; c = read()) {
+                if (c == '\r') {
+                    if (peek() == '\n') position++;
+                    return;
+                }
+            }
+        }
+
+        private int read() throws IOException {
+            return fill() ? buffer[position++] : -1;
+        }
+
+        private int peek() throws IOException {
+            return fill() ? buffer[position] : -1;
+        }
+
+        private boolean fill() throws IOException {
+            if (position < limit) return true;
+            limit = Math.max(reader.read(buffer, 0, buffer.length), 0);
+            position = 0;
+            return limit > 0;
+        }
+    }
+}
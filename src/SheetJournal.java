@@ -0,0 +1,282 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal that keeps an Ex2Sheet saved without rewriting its file after every change.
+ *
+ * The sheet's file (the snapshot) is saved in full only now and then. In between, every set() appends a
+ * small record to a journal segment next to it ("name.journal.N"), and commit() forces the records
+ * appended since the last commit to the disk with a single sync - so a save costs the edits made since,
+ * and several edits share a sync. Records carry a checksum: a record torn by a crash is dropped, with
+ * whatever follows it.
+ *
+ * Once a segment holds compactionThreshold records, commit() seals it, starts the next one, and folds the
+ * sealed segments into a new snapshot on a background thread: the old snapshot plus the sealed records
+ * are written to a temporary file that is then renamed over the snapshot (see SheetFiles), and only then
+ * are the sealed segments deleted. The background thread reads files only, never the sheet, which goes
+ * on changing meanwhile. Replaying a segment twice is harmless (a record holds the new data of a cell,
+ * not a difference), so a crash at any point of the compaction loses nothing.
+ *
+ * open() recovers a sheet: it loads the snapshot and replays the segments left, in order.
+ * A journal is used from the sheet's thread; load() on the sheet detaches it (see Ex2Sheet.setJournal).
+ */
+public class SheetJournal implements Closeable {
+    /** Records appended before commit() syncs them on its own, unless set with setGroupSize(). */
+    public static final int DEFAULT_GROUP_SIZE = 64;
+    /** Records in a segment before it is folded into the snapshot, unless set with setCompactionThreshold(). */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10_000;
+
+    private final Ex2Sheet sheet;
+    private final Path snapshot;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "sheet-journal-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> compaction; // the last compaction started, null if none
+    private int generation; // of the segment appended to
+    private FileOutputStream file;
+    private DataOutputStream segment;
+    private int records; // in the segment appended to
+    private int uncommitted; // records appended since the last sync
+    private int groupSize = DEFAULT_GROUP_SIZE;
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private final CRC32 checksum = new CRC32();
+
+    private SheetJournal(Ex2Sheet sheet, Path snapshot) {
+        this.sheet = sheet;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Recovers the sheet from the snapshot file and its journal, and journals the sheet's changes from now on.
+     * If there is no snapshot yet, the sheet as it is now is saved as the first one.
+     * @param sheet the sheet to journal; its cells are replaced by the recovered ones if the file exists.
+     * @param fileName the snapshot file; the journal segments are written next to it.
+     */
+    public static SheetJournal open(Ex2Sheet sheet, String fileName) throws IOException {
+        SheetJournal journal = new SheetJournal(sheet, Path.of(fileName).toAbsolutePath());
+        journal.recover();
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        SheetFiles.deleteTemporaries(snapshot); // left by crashes during saves
+        if (Files.exists(snapshot)) {
+            sheet.load(snapshot.toString());
+        } else {
+            sheet.save(snapshot.toString());
+        }
+        List<Integer> generations = segments();
+        sheet.beginBatch();
+        try {
+            for (int g : generations) {
+                replay(g, sheet::set);
+            }
+        } finally {
+            sheet.commitBatch();
+        }
+        // A new segment, rather than appending after what may be a torn record.
+        generation = generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1;
+        openSegment();
+        sheet.setJournal(this);
+    }
+
+    /** @param groupSize the records appended before they are synced without waiting for commit(). */
+    public void setGroupSize(int groupSize) {
+        this.groupSize = Math.max(1, groupSize);
+    }
+
+    /** @param threshold the records in a segment before commit() folds it into the snapshot. */
+    public void setCompactionThreshold(int threshold) {
+        this.compactionThreshold = Math.max(1, threshold);
+    }
+
+    // Called by Ex2Sheet.set() for every change; "" clears the cell.
+    void record(int col, int row, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        try {
+            segment.writeInt(col);
+            segment.writeInt(row);
+            segment.writeInt(bytes.length);
+            segment.write(bytes);
+            segment.writeInt(checksum(checksum, col, row, bytes));
+            records++;
+            if (++uncommitted >= groupSize) {
+                sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot append to the journal of " + snapshot, e);
+        }
+    }
+
+    /**
+     * Makes every change set() made so far durable, and starts folding the journal into the snapshot if
+     * it grew past the compaction threshold.
+     */
+    public void commit() throws IOException {
+        sync();
+        if (records >= compactionThreshold && (compaction == null || compaction.isDone())) {
+            compact();
+        }
+    }
+
+    /**
+     * Seals the journal segment and folds all the sealed segments into the snapshot on the background thread.
+     * @return the compaction, done once the new snapshot is in place.
+     */
+    public Future<?> compact() throws IOException {
+        awaitCompaction(); // one at a time, and an error of the last one is reported here
+        sync();
+        segment.close();
+        int sealed = generation++;
+        openSegment();
+        compaction = compactor.submit(() -> {
+            fold(sealed);
+            return null;
+        });
+        return compaction;
+    }
+
+    /** Commits, waits for a running compaction and detaches the journal from the sheet. */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+            segment.close();
+            if (records == 0) {
+                Files.deleteIfExists(segment(generation));
+            }
+            awaitCompaction();
+        } finally {
+            compactor.shutdown();
+            sheet.detachJournal(this);
+        }
+    }
+
+    private void sync() throws IOException {
+        if (uncommitted == 0) return;
+        segment.flush();
+        file.getFD().sync();
+        uncommitted = 0;
+    }
+
+    private void openSegment() throws IOException {
+        file = new FileOutputStream(segment(generation).toFile());
+        SheetFiles.syncDirectory(snapshot.getParent()); // or a crash may lose the new segment, records and all
+        segment = new DataOutputStream(new BufferedOutputStream(file));
+        records = 0;
+        uncommitted = 0;
+    }
+
+    private void awaitCompaction() throws IOException {
+        if (compaction == null) return;
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compacting " + snapshot);
+        } catch (ExecutionException e) {
+            throw new IOException("cannot compact the journal of " + snapshot, e.getCause());
+        } finally {
+            compaction = null;
+        }
+    }
+
+    // Runs on the background thread: the snapshot and the segments up to the sealed one become the new snapshot.
+    private void fold(int sealed) throws IOException {
+        LongHashMap<String> cells = new LongHashMap<>();
+        int[] size = new int[2];
+        SheetFiles.load(snapshot.toString(), new SheetFiles.Target() {
+            public void reset(int width, int height) {
+                size[0] = width;
+                size[1] = height;
+            }
+
+            public void put(int col, int row, String data) {
+                cells.put(DependencyGraph.key(col, row), data);
+            }
+        });
+        List<Integer> folded = new ArrayList<>();
+        for (int g : segments()) {
+            if (g > sealed) break;
+            replay(g, (col, row, data) -> {
+                if (data.isEmpty()) {
+                    cells.remove(DependencyGraph.key(col, row));
+                } else {
+                    cells.put(DependencyGraph.key(col, row), data);
+                }
+            });
+            folded.add(g);
+        }
+        // The save syncs the directory after its rename: the new snapshot is durable before the segments go.
+        SheetFiles.save(size[0], size[1], cells, snapshot.toString());
+        for (int g : folded) {
+            Files.deleteIfExists(segment(g));
+        }
+    }
+
+    private interface Change {
+        void apply(int col, int row, String data);
+    }
+
+    // Applies the records of the segment in order, up to its end or to the first torn one.
+    private static void replay(Path segment, Change change) throws IOException {
+        CRC32 checksum = new CRC32();
+        long size = Files.size(segment);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.toFile())))) {
+            while (true) {
+                int col = in.readInt(), row = in.readInt(), length = in.readInt();
+                if (length < 0 || length > size) return; // a torn length
+                byte[] bytes = in.readNBytes(length);
+                if (bytes.length < length || in.readInt() != checksum(checksum, col, row, bytes)) return;
+                change.apply(col, row, new String(bytes, StandardCharsets.UTF_8));
+            }
+        } catch (EOFException e) {
+            // the end of the segment, possibly in the middle of its last record
+        }
+    }
+
+    private static int checksum(CRC32 checksum, int col, int row, byte[] data) {
+        checksum.reset();
+        checksum.update(ByteBuffer.allocate(8).putInt(col).putInt(row).flip());
+        checksum.update(data);
+        return (int) checksum.getValue();
+    }
+
+    private void replay(int generation, Change change) throws IOException {
+        replay(segment(generation), change);
+    }
+
+    private Path segment(int generation) {
+        return snapshot.resolveSibling(snapshot.getFileName() + ".journal." + generation);
+    }
+
+    // The generations of the segments on the disk, in increasing order.
+    private List<Integer> segments() throws IOException {
+        String prefix = snapshot.getFileName() + ".journal.";
+        List<Integer> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshot.getParent(), prefix + "*")) {
+            for (Path path : files) {
+                String suffix = path.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit) && suffix.length() < 10) {
+                    generations.add(Integer.parseInt(suffix));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
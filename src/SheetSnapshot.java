@@ -0,0 +1,102 @@
+/**
+ * An immutable view of an Ex2Sheet as of one completed evaluation (see Ex2Sheet.snapshot()).
+ * Readers on any thread may use it without locking while the sheet goes on changing and recalculating:
+ * the sheet publishes each new snapshot with a single volatile write, so a reader holding one sees
+ * all of one evaluation and nothing of the next.
+ *
+ * The cells are kept in blocks of BLOCK_ROWS rows per column. A new snapshot is made copy-on-write
+ * from the previous one: only the columns and blocks holding cells the evaluation changed are copied,
+ * the others are shared - so publishing costs about the size of the recalculated cone, not of the sheet.
+ */
+public final class SheetSnapshot {
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_ROWS = 1 << BLOCK_SHIFT;
+
+    private final int width, height;
+    private final long version;
+    private final CellSnapshot[][][] columns; // [col][row / BLOCK_ROWS][row % BLOCK_ROWS], null where all empty
+
+    private SheetSnapshot(int width, int height, long version, CellSnapshot[][][] columns) {
+        this.width = width;
+        this.height = height;
+        this.version = version;
+        this.columns = columns;
+    }
+
+    /** A snapshot of a width x height sheet with no cells. */
+    static SheetSnapshot empty(int width, int height) {
+        return new SheetSnapshot(width, height, 0, new CellSnapshot[width][][]);
+    }
+
+    /** A snapshot with no cells, in the given dimensions, that follows this one. */
+    SheetSnapshot cleared(int width, int height) {
+        return new SheetSnapshot(width, height, version, new CellSnapshot[width][][]);
+    }
+
+    /**
+     * A snapshot sharing this one's cells, except for the given cells, which are copied from the sheet.
+     * @param changed the packed keys (see DependencyGraph.key) of the cells to copy, in this snapshot's dimensions.
+     */
+    SheetSnapshot with(Iterable<Long> changed, Sheet sheet) {
+        CellSnapshot[][][] copy = columns.clone();
+        boolean[] copiedColumns = new boolean[width];
+        LongHashMap<Boolean> copiedBlocks = new LongHashMap<>();
+        for (long key : changed) {
+            int col = DependencyGraph.col(key), row = DependencyGraph.row(key);
+            CellSnapshot[][] blocks = copy[col];
+            if (!copiedColumns[col]) {
+                blocks = blocks == null ? new CellSnapshot[(height + BLOCK_ROWS - 1) >>> BLOCK_SHIFT][] : blocks.clone();
+                copy[col] = blocks;
+                copiedColumns[col] = true;
+            }
+            int block = row >>> BLOCK_SHIFT;
+            if (copiedBlocks.put(DependencyGraph.key(col, block), Boolean.TRUE) == null) {
+                blocks[block] = blocks[block] == null ? new CellSnapshot[BLOCK_ROWS] : blocks[block].clone();
+            }
+            Cell cell = sheet.get(col, row);
+            blocks[block][row & (BLOCK_ROWS - 1)] = cell == EmptyCell.INSTANCE ? null
+                    : new CellSnapshot(cell.getData(), sheet.value(col, row), cell.getType(), cell.getOrder());
+        }
+        return new SheetSnapshot(width, height, version + 1, copy);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /** Grows by one with every evaluation published, so readers can tell whether anything changed. */
+    public long version() {
+        return version;
+    }
+
+    public boolean isIn(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /**
+     * @return the cell at x,y as of this snapshot (EmptyCell.INSTANCE if it held no data), or null if
+     * x,y is out of the sheet.
+     */
+    public Cell get(int x, int y) {
+        if (!isIn(x, y)) return null;
+        CellSnapshot cell = cell(x, y);
+        return cell != null ? cell : EmptyCell.INSTANCE;
+    }
+
+    /** @return the string presented at x,y as of this snapshot, as Sheet.value() would have returned it. */
+    public String value(int x, int y) {
+        if (!isIn(x, y)) return Ex2Utils.EMPTY_CELL;
+        CellSnapshot cell = cell(x, y);
+        return cell != null ? cell.value() : Ex2Utils.EMPTY_CELL;
+    }
+
+    private CellSnapshot cell(int col, int row) {
+        CellSnapshot[][] blocks = columns[col];
+        CellSnapshot[] block = blocks == null ? null : blocks[row >>> BLOCK_SHIFT];
+        return block == null ? null : block[row & (BLOCK_ROWS - 1)];
+    }
+}